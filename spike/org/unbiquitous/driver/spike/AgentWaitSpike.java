@@ -0,0 +1,63 @@
+package org.unbiquitous.driver.spike;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+
+import org.unbiquitous.driver.execution.ExecutionDriver;
+import org.unbiquitous.uos.core.InitialProperties;
+import org.unbiquitous.uos.core.applicationManager.CallContext;
+import org.unbiquitous.uos.core.messageEngine.messages.Call;
+import org.unbiquitous.uos.core.messageEngine.messages.Response;
+
+/**
+ * Measures how much CPU the driver burns while many agents are waiting on
+ * links that don't deliver any data.
+ *
+ * Usage: AgentWaitSpike [agents] [seconds]
+ */
+public class AgentWaitSpike {
+
+	public static void main(String[] args) throws Exception {
+		int agents = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		ExecutionDriver driver = new ExecutionDriver();
+		InitialProperties props = new InitialProperties();
+		props.put(ExecutionDriver.AGENT_THREADS_KEY, ""+agents);
+		props.put(ExecutionDriver.AGENT_TIMEOUT_KEY, ""+(seconds * 2000));
+		driver.init(null, props, null);
+
+		PipedOutputStream[] links = new PipedOutputStream[agents];
+		for (int i = 0; i < agents; i++){
+			links[i] = new PipedOutputStream();
+			final DataInputStream slow = new DataInputStream(new PipedInputStream(links[i]));
+			driver.executeAgent(new Call(), new Response(), new CallContext(){
+				public DataInputStream getDataInputStream() {	return slow;	}
+				public DataInputStream getDataInputStream(int index) {	return slow;	}
+			});
+		}
+
+		long cpuBefore = processCpuTime();
+		long before = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		long cpu = processCpuTime() - cpuBefore;
+		long wall = System.nanoTime() - before;
+
+		System.out.println("Waiting agents: "+driver.activeAgents());
+		System.out.println("CPU time: "+(cpu/1000000)+" ms in "+(wall/1000000)+" ms");
+		System.out.println("Cores busy: "+((double)cpu/wall));
+
+		for (PipedOutputStream link : links){
+			try {	link.close();	} catch (IOException e) {}
+		}
+		driver.destroy();
+	}
+
+	private static long processCpuTime() {
+		return ((com.sun.management.OperatingSystemMXBean)
+					ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+	}
+}
@@ -0,0 +1,91 @@
+package org.unbiquitous.driver.spike;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Compares the byte by byte copy formerly used by ClassToolbox.writeOnFile
+ * against the buffered copy (for any stream) and the channel transfer (for
+ * files) used now. Jars from 10KB to 50MB are copied.
+ *
+ * Usage: CopySpike [rounds]
+ */
+public class CopySpike {
+
+	private static final int[] SIZES = {10 * 1024, 100 * 1024, 1024 * 1024,
+										10 * 1024 * 1024, 50 * 1024 * 1024};
+
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		File target = File.createTempFile("uExeCopySpike", ".jar");
+		target.deleteOnExit();
+
+		System.out.println("size(KB)\tbyteByByte(ms)\tbuffered(ms)\tchannel(ms)");
+		for (int size : SIZES){
+			byte[] content = new byte[size];
+			new Random(size).nextBytes(content);
+			File origin = File.createTempFile("uExeCopySpike", ".jar");
+			origin.deleteOnExit();
+			FileOutputStream writer = new FileOutputStream(origin);
+			writer.write(content);
+			writer.close();
+
+			long byteByByte = Long.MAX_VALUE, buffered = Long.MAX_VALUE, channel = Long.MAX_VALUE;
+			for (int i = 0; i < rounds; i++){
+				long start = System.nanoTime();
+				byteByByte(new ByteArrayInputStream(content), target);
+				byteByByte = Math.min(byteByByte, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				buffered(new ByteArrayInputStream(content), target);
+				buffered = Math.min(buffered, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				channel(new FileInputStream(origin), target);
+				channel = Math.min(channel, System.nanoTime() - start);
+			}
+			System.out.println((size/1024)+"\t"+(byteByByte/1000000.0)+"\t"
+								+(buffered/1000000.0)+"\t"+(channel/1000000.0));
+		}
+	}
+
+	private static void byteByByte(InputStream in, File file) throws IOException {
+		FileOutputStream writer = new FileOutputStream(file);
+		int b = 0;
+		while((b = in.read()) != -1) {
+			writer.write(b);
+		}
+		writer.close();
+	}
+
+	private static void buffered(InputStream in, File file) throws IOException {
+		FileOutputStream writer = new FileOutputStream(file);
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			writer.write(buffer, 0, read);
+		}
+		writer.close();
+	}
+
+	private static void channel(FileInputStream in, File file) throws IOException {
+		FileOutputStream writer = new FileOutputStream(file);
+		FileChannel source = in.getChannel();
+		long position = 0;
+		long remaining = source.size();
+		while (remaining > 0) {
+			long copied = writer.getChannel().transferFrom(source, position, remaining);
+			if (copied <= 0) break;
+			position += copied;
+			remaining -= copied;
+		}
+		writer.close();
+		in.close();
+	}
+}
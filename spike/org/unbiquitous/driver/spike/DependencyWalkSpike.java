@@ -0,0 +1,145 @@
+package org.unbiquitous.driver.spike;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.bcel.Repository;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.LocalVariable;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.ArrayType;
+import org.apache.bcel.generic.BasicType;
+import org.apache.bcel.generic.Type;
+import org.unbiquitous.driver.execution.ExecutionDriver;
+import org.unbiquitous.driver.execution.executeAgent.ClassToolbox;
+
+/**
+ * Compares the dependency walk done by reading the constant pool of each
+ * class file (ClassToolbox.dependenciesOf) with the reflection based walk
+ * it replaced (kept below as it was). The ExecutionDriver is used as a large
+ * agent graph, since it drags luaj, jackson and the middleware along.
+ *
+ * Every round uses a fresh toolbox (and an empty BCEL repository), so the
+ * dependencies memoized by previous rounds are not what is measured. Only 
+ * the walk is timed, the classpath is indexed before it starts.
+ *
+ * Usage: DependencyWalkSpike [rounds] [agentClass]
+ */
+public class DependencyWalkSpike {
+
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		Class<?> agent = args.length > 1 ? Class.forName(args[1]) : ExecutionDriver.class;
+
+		System.out.println("walker\tclasses\tbest(ms)\tallocated(KB)");
+		long best = Long.MAX_VALUE, allocated = 0;
+		int classes = 0;
+		for (int i = 0; i < rounds; i++){
+			Toolbox toolbox = freshToolbox();
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			ReflectionWalker walker = new ReflectionWalker(toolbox);
+			walker.walk(agent);
+			best = Math.min(best, System.nanoTime() - start);
+			allocated = allocatedBytes() - bytes;
+			classes = walker.processed.size();
+		}
+		report("reflection", classes, best, allocated);
+
+		best = Long.MAX_VALUE;
+		for (int i = 0; i < rounds; i++){
+			Toolbox toolbox = freshToolbox();
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			List<String> dependencies = toolbox.dependenciesOf(agent);
+			best = Math.min(best, System.nanoTime() - start);
+			allocated = allocatedBytes() - bytes;
+			classes = dependencies.size();
+		}
+		report("constant pool", classes, best, allocated);
+	}
+
+	private static Toolbox freshToolbox() {
+		Repository.clearCache();
+		Toolbox toolbox = new Toolbox();
+		toolbox.listKnownClasses(); // waits for the classpath index
+		return toolbox;
+	}
+
+	private static void report(String walker, int classes, long best, long allocated) {
+		System.out.println(walker+"\t"+classes+"\t"+(best / 1000000)+"\t"
+							+(allocated < 0 ? "?" : ""+allocated / 1024));
+	}
+
+	/** @return Bytes allocated by this thread, -1 if the JVM doesn't tell. */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads =
+				java.lang.management.ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean){
+			return ((com.sun.management.ThreadMXBean) threads)
+							.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	static class Toolbox extends ClassToolbox {
+		InputStream find(Class<?> clazz) throws IOException {
+			return findClass(clazz, null);
+		}
+	}
+
+	/** The reflection + Class.forName walk, without writing anything. */
+	static class ReflectionWalker {
+		final Toolbox toolbox;
+		final Set<Class<?>> processed = new HashSet<Class<?>>();
+
+		ReflectionWalker(Toolbox toolbox) {
+			this.toolbox = toolbox;
+		}
+
+		void walk(Class<?> clazz) throws Exception {
+			if (processed.contains(clazz)) return;
+			InputStream bytecode = toolbox.find(clazz);
+			if (bytecode == null) return;
+			bytecode.close();
+			processed.add(clazz);
+			for (java.lang.reflect.Field f : clazz.getDeclaredFields()){
+				Class<?> type = f.getType();
+				while (type.isArray()) type = type.getComponentType();
+				walk(type);
+			}
+			if (clazz.getSuperclass() != null) walk(clazz.getSuperclass());
+			for (Class<?> s : clazz.getDeclaredClasses()) walk(s);
+			for (Class<?> i : clazz.getInterfaces()) walk(i);
+			JavaClass rClazz = Repository.lookupClass(clazz);
+			for (Method method : rClazz.getMethods()){
+				for (Type t : method.getArgumentTypes()) walk(t);
+				if (method.getLocalVariableTable() != null){
+					for (LocalVariable v : method.getLocalVariableTable()
+														.getLocalVariableTable()){
+						String name = v.getSignature()
+								.replaceAll("\\[", "").replace('/', '.');
+						if (name.length() > 2){
+							walk(Class.forName(name.substring(1, name.length() - 1)));
+						}
+					}
+				}
+				if (method.getExceptionTable() != null){
+					for (String e : method.getExceptionTable().getExceptionNames()){
+						walk(Class.forName(e));
+					}
+				}
+				walk(method.getReturnType());
+			}
+		}
+
+		void walk(Type t) throws Exception {
+			Type type = t;
+			while (type instanceof ArrayType) type = ((ArrayType) type).getElementType();
+			if (!(type instanceof BasicType)) walk(Class.forName(type.toString()));
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package org.unbiquitous.driver.spike;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.unbiquitous.driver.execution.executeAgent.ClassToolbox;
+
+/**
+ * Compares the heap retained by the class index used by ClassFinder with
+ * the HashMap of class name to File (plus the Set of blacklisted class
+ * names) it replaced, for a classpath of 60k classes.
+ *
+ * Synthetic jars replace the real classpath, the persistent index is
+ * disabled. Run with a fixed heap (ex: -Xms512m -Xmx512m) for stable numbers.
+ *
+ * Usage: IndexFootprintSpike [jars] [classesPerJar]
+ */
+public class IndexFootprintSpike {
+
+	public static void main(String[] args) throws Exception {
+		int jars = args.length > 0 ? Integer.parseInt(args[0]) : 120;
+		int classesPerJar = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		String separator = System.getProperty("path.separator");
+		String original = System.getProperty("java.class.path");
+
+		List<File> files = new ArrayList<File>();
+		StringBuilder classpath = new StringBuilder();
+		for (int i = 0; i < jars; i++){
+			File jar = createJar(i, classesPerJar);
+			files.add(jar);
+			if (i > 0) classpath.append(separator);
+			classpath.append(jar.getPath());
+		}
+		System.setProperty("java.class.path", classpath.toString());
+		System.setProperty("ubiquitos.execution.classIndex", "none");
+
+		long before = usedMemory();
+		Map<String, File> classToPath = new HashMap<String, File>();
+		Set<String> blacklisted = new HashSet<String>();
+		for (int i = 0; i < jars; i++){
+			for (int c = 0; c < classesPerJar; c++){
+				String name = className(i, c);
+				classToPath.put(name, files.get(i));
+				if (i % 10 == 0) blacklisted.add(name);
+			}
+		}
+		long maps = usedMemory() - before;
+		System.out.println("HashMap+HashSet:\t"+(maps/1024)+" KB for "+classToPath.size()+" classes");
+		classToPath = null;
+		blacklisted = null;
+
+		before = usedMemory();
+		ClassToolbox toolbox = new ClassToolbox();
+		toolbox.add2BlackList("uExeFootprintSpike0_", "uExeFootprintSpike10_");
+		toolbox.listKnownClasses();
+		long index = usedMemory() - before;
+		System.out.println("ClassIndex:\t"+(index/1024)+" KB for "
+							+toolbox.listKnownClasses().size()+" classes");
+
+		System.setProperty("java.class.path", original);
+	}
+
+	private static String className(int jar, int clazz) {
+		return "org.unbiquitous.spike.module"+jar+".pkg"+(clazz % 25)+".SomeClass"+clazz;
+	}
+
+	private static File createJar(int id, int classes) throws IOException {
+		File jar = File.createTempFile("uExeFootprintSpike"+id+"_", ".jar");
+		jar.deleteOnExit();
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar));
+		Random random = new Random(id);
+		for (int i = 0; i < classes; i++){
+			zos.putNextEntry(new ZipEntry(className(id, i).replace('.', '/')+".class"));
+			zos.write(new byte[16 + random.nextInt(16)]);
+		}
+		zos.close();
+		return jar;
+	}
+
+	private static long usedMemory() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++){
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,77 @@
+package org.unbiquitous.driver.spike;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.unbiquitous.driver.execution.executeAgent.ClassToolbox;
+
+/**
+ * Compares how long the classpath takes to be indexed serially and using
+ * several threads. Synthetic jars and a class directory tree are appended to
+ * the real classpath, the persistent index is disabled so every round does
+ * a full scan.
+ *
+ * Usage: IndexingSpike [jars] [classesPerJar] [rounds]
+ */
+public class IndexingSpike {
+
+	public static void main(String[] args) throws Exception {
+		int jars = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int classesPerJar = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		String separator = System.getProperty("path.separator");
+		String original = System.getProperty("java.class.path");
+
+		StringBuilder classpath = new StringBuilder(original);
+		for (int i = 0; i < jars; i++){
+			classpath.append(separator)
+					.append(createJar(i, classesPerJar).getPath());
+		}
+		classpath.append(separator).append(createTree(100, 50).getPath());
+		System.setProperty("java.class.path", classpath.toString());
+		System.setProperty("ubiquitos.execution.classIndex", "none");
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.println("threads\tclasses\tbest(ms)");
+		for (int threads : new int[]{1, 2, cores, cores * 2}){
+			System.setProperty("ubiquitos.execution.indexThreads", ""+threads);
+			long best = Long.MAX_VALUE;
+			int classes = 0;
+			for (int i = 0; i < rounds; i++){
+				long start = System.nanoTime();
+				classes = new ClassToolbox().listKnownClasses().size();
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			System.out.println(threads+"\t"+classes+"\t"+(best/1000000));
+		}
+		System.setProperty("java.class.path", original);
+	}
+
+	private static File createJar(int id, int classes) throws IOException {
+		File jar = File.createTempFile("uExeIndexingSpike"+id+"_", ".jar");
+		jar.deleteOnExit();
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar));
+		for (int i = 0; i < classes; i++){
+			zos.putNextEntry(new ZipEntry("org/unbiquitous/spike"+id+"/Class"+i+".class"));
+			zos.write(new byte[64]);
+		}
+		zos.close();
+		return jar;
+	}
+
+	private static File createTree(int packages, int classes) throws IOException {
+		File root = File.createTempFile("uExeIndexingSpike", "");
+		root.delete();
+		for (int p = 0; p < packages; p++){
+			File pkg = new File(root, "org/unbiquitous/tree/p"+p);
+			pkg.mkdirs();
+			for (int c = 0; c < classes; c++){
+				new File(pkg, "Class"+c+".class").createNewFile();
+			}
+		}
+		return root;
+	}
+}
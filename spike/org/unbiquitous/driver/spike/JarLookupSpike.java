@@ -0,0 +1,114 @@
+package org.unbiquitous.driver.spike;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Compares how long it takes to fetch classes from a jar with 5000 classes
+ * using a sequential scan (like ClassFinder used to) and using the central
+ * directory of an opened ZipFile (like ClassFinder does now).
+ *
+ * Usage: JarLookupSpike [classes] [lookups]
+ */
+public class JarLookupSpike {
+
+	public static void main(String[] args) throws Exception {
+		int classes = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		File jar = createJar(classes);
+		Random random = new Random(7);
+		String[] names = new String[lookups];
+		for (int i = 0; i < lookups; i++){
+			names[i] = "org/unbiquitous/spike/Class"+random.nextInt(classes);
+		}
+
+		long start = System.nanoTime();
+		long bytes = 0;
+		for (String name : names){
+			bytes += scan(name, jar).length;
+		}
+		long scan = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		ZipFile zip = new ZipFile(jar);
+		long indexedBytes = 0;
+		for (String name : names){
+			indexedBytes += indexed(name, zip).length;
+		}
+		long indexed = System.nanoTime() - start;
+		zip.close();
+
+		System.out.println(lookups+" lookups on a jar with "+classes+" classes");
+		System.out.println("Sequential scan: "+(scan/1000000)+" ms ("+bytes+" bytes)");
+		System.out.println("Central directory: "+(indexed/1000000)+" ms ("+indexedBytes+" bytes)");
+		jar.delete();
+	}
+
+	private static File createJar(int classes) throws IOException {
+		File jar = File.createTempFile("uExeLookupSpike", ".jar");
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar));
+		Random random = new Random(42);
+		for (int i = 0; i < classes; i++){
+			byte[] content = new byte[1024 + random.nextInt(4096)];
+			random.nextBytes(content);
+			zos.putNextEntry(new ZipEntry("org/unbiquitous/spike/Class"+i+".class"));
+			zos.write(content);
+		}
+		zos.close();
+		return jar;
+	}
+
+	/** The way ClassFinder used to look for a class. */
+	private static byte[] scan(String className, File jar) throws IOException {
+		ZipInputStream zis = new ZipInputStream(new BufferedInputStream(
+				new FileInputStream(jar)));
+		ZipEntry j;
+		List<Byte> bytes = new ArrayList<Byte>();
+		while ((j = zis.getNextEntry()) != null) {
+			final int BUFFER = 2048;
+			byte data[] = new byte[BUFFER];
+			int count = 0;
+			while ((count = zis.read(data, 0, BUFFER)) != -1) {
+				if (j.getName().equals(className + ".class")) {
+					for (int i = 0; i < count; i++)
+						bytes.add(data[i]);
+				}
+			}
+			if (!bytes.isEmpty()) {
+				byte[] buf = new byte[bytes.size()];
+				for (int i = 0; i < bytes.size(); i++)
+					buf[i] = bytes.get(i);
+				zis.close();
+				return buf;
+			}
+		}
+		zis.close();
+		return new byte[0];
+	}
+
+	private static byte[] indexed(String className, ZipFile zip) throws IOException {
+		ZipEntry entry = zip.getEntry(className + ".class");
+		InputStream in = zip.getInputStream(entry);
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) entry.getSize());
+		byte[] data = new byte[2048];
+		int count;
+		while ((count = in.read(data)) != -1) {
+			out.write(data, 0, count);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,68 @@
+package org.unbiquitous.driver.spike;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.unbiquitous.driver.execution.ExecutionDriver;
+
+/**
+ * Measures, as the classpath grows, how long an ExecutionDriver takes to be 
+ * created and how long until its classpath index is ready. The constructor
+ * only starts indexing (in background), the index is ready once its epoch
+ * is known.
+ *
+ * Synthetic jars are appended to the real classpath.
+ *
+ * Usage: StartupSpike [classesPerJar]
+ */
+public class StartupSpike {
+
+	private static final int[] JARS = {0, 10, 50, 100, 200};
+
+	public static void main(String[] args) throws Exception {
+		int classesPerJar = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		String separator = System.getProperty("path.separator");
+		String original = System.getProperty("java.class.path");
+
+		new ExecutionDriver().toolbox().epoch(); // warm up
+
+		System.out.println("jars\tclasses\tstartup(ms)\tindexed(ms)");
+		for (int jars : JARS){
+			StringBuilder classpath = new StringBuilder(original);
+			for (int i = 0; i < jars; i++){
+				classpath.append(separator)
+						.append(createJar(i, classesPerJar).getPath());
+			}
+			System.setProperty("java.class.path", classpath.toString());
+
+			long start = System.nanoTime();
+			ExecutionDriver driver = new ExecutionDriver();
+			long created = System.nanoTime() - start;
+			driver.toolbox().epoch(); // waits for the index
+			long indexed = System.nanoTime() - start;
+			driver.destroy();
+			System.out.println(jars+"\t"+(jars*classesPerJar)+"\t"
+								+(created/1000000)+"\t"+(indexed/1000000));
+		}
+		System.setProperty("java.class.path", original);
+	}
+
+	private static File createJar(int id, int classes) throws IOException {
+		File jar = File.createTempFile("uExeStartupSpike"+id+"_", ".jar");
+		jar.deleteOnExit();
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar));
+		Random random = new Random(id);
+		for (int i = 0; i < classes; i++){
+			byte[] content = new byte[512 + random.nextInt(4096)];
+			random.nextBytes(content);
+			zos.putNextEntry(new ZipEntry("org/unbiquitous/spike"+id+"/Class"+i+".class"));
+			zos.write(content);
+		}
+		zos.close();
+		return jar;
+	}
+}
@@ -2,20 +2,37 @@ package org.unbiquitous.driver.execution;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectStreamClass;
-import java.io.StringReader;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.luaj.vm2.Globals;
-import org.luaj.vm2.lib.jse.JsePlatform;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaValue;
 import org.unbiquitous.driver.execution.executeAgent.Agent;
+import org.unbiquitous.driver.execution.executeAgent.AgentUtil;
 import org.unbiquitous.driver.execution.executeAgent.ClassToolbox;
 import org.unbiquitous.driver.execution.executeAgent.GatewayMap;
+import org.unbiquitous.driver.execution.remoteExecution.CallValues.Scope;
+import org.unbiquitous.driver.execution.remoteExecution.GlobalsPool;
+import org.unbiquitous.driver.execution.remoteExecution.GlobalsPool.ResetPolicy;
+import org.unbiquitous.driver.execution.remoteExecution.ScriptCache;
 import org.unbiquitous.driver.execution.remoteExecution.UosLuaCall;
 import org.unbiquitous.uos.core.InitialProperties;
 import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;
@@ -26,6 +43,9 @@ import org.unbiquitous.uos.core.messageEngine.dataType.UpService.ParameterType;
 import org.unbiquitous.uos.core.messageEngine.messages.Call;
 import org.unbiquitous.uos.core.messageEngine.messages.Response;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 
 /**
  * This driver enables Code Mobility to the middleware.
@@ -53,87 +73,257 @@ import org.unbiquitous.uos.core.messageEngine.messages.Response;
  * 
  * OBS: For using ExecutionDriver on Android please see {@link ClassToolbox#platform}
  * 
+ * The Lua environments and the threads running agents are only created during
+ * init, so the driver must be initialized before its services are called.
+ * 
+ * The following {@link InitialProperties} are considered during init:
+ * 
+ * - "ubiquitos.execution.lua.poolSize": How many pre-initialized Lua 
+ * environments are kept for remoteExecution (default 4).
+ * - "ubiquitos.execution.lua.reset": How a Lua environment is cleaned after 
+ * being used: "restore" (default) or "discard". See {@link ResetPolicy}.
+ * - "ubiquitos.execution.lua.cacheSize": How many compiled scripts are kept
+ * for remoteExecution (default 128). See {@link ScriptCache}.
+ * - "ubiquitos.execution.agent.threads": How many agents can run at the same
+ * time (default 16).
+ * - "ubiquitos.execution.agent.queue": How many received agents can wait for
+ * a free thread (default 64). Agents beyond that are rejected with an error.
+ * - "ubiquitos.execution.agent.timeout": How long, in milliseconds, the 
+ * reception of an agent (and its classes) can take before being aborted
+ * (default 60000). A package still arriving while its agent already runs is
+ * aborted as well, its classes not received by then are never found. With 0
+ * (or less) receptions are waited for forever.
+ * - "ubiquitos.execution.agent.loaders": How many class loaders of received
+ * packages are kept, so agents of a package already received don't need it
+ * again (default 32).
+ * 
+ * The following are system properties instead, since they are read when 
+ * the classes are loaded or when the {@link ClassToolbox} is created (it starts
+ * indexing the classpath right away), both before init:
+ * 
+ * - "ubiquitos.execution.indexThreads": How many threads index the classpath
+ * (default is the number of processors).
+ * - "ubiquitos.execution.packagingThreads": How many threads walk the 
+ * dependencies of an agent while packaging it (default is the number of 
+ * processors).
+ * - "ubiquitos.execution.classIndex": File where the classpath index is kept 
+ * between runs (by default, or "none", it is only kept in memory).
+ * 
  * @author Fabricio Nogueira Buzeto
  *
  */
 public class ExecutionDriver implements UosDriver {
 
 	private static final Logger logger = Logger.getLogger(ExecutionDriver.class.getName());
+	private static final ObjectMapper mapper = new ObjectMapper();
+	
+	public static final String LUA_POOL_SIZE_KEY = "ubiquitos.execution.lua.poolSize";
+	public static final String LUA_RESET_KEY = "ubiquitos.execution.lua.reset";
+	public static final String LUA_CACHE_SIZE_KEY = "ubiquitos.execution.lua.cacheSize";
+	public static final String AGENT_THREADS_KEY = "ubiquitos.execution.agent.threads";
+	public static final String AGENT_QUEUE_KEY = "ubiquitos.execution.agent.queue";
+	public static final String AGENT_TIMEOUT_KEY = "ubiquitos.execution.agent.timeout";
+	public static final String AGENT_LOADERS_KEY = "ubiquitos.execution.agent.loaders";
+	
+	private static final int DEFAULT_AGENT_THREADS = 16;
+	private static final int DEFAULT_AGENT_QUEUE = 64;
+	private static final int DEFAULT_AGENT_TIMEOUT = 60000;
 	
-	private long script_id = 0;
-
 	private UpDriver driver;
 	private Gateway gateway;
 	private ClassToolbox toolbox;
+	private GlobalsPool globals;
+	private ScriptCache scripts;
+	private int agentQueue;
+	private ThreadPoolExecutor agents;
+	private long agentTimeout;
+	private ScheduledExecutorService watchdog;
 	
 	public ExecutionDriver(){
 		this(new ClassToolbox());
-		toolbox.add2BlackList("junit");
-		toolbox.add2BlackList("log4j");
-		toolbox.add2BlackList("hsqldb");
-		toolbox.add2BlackList("owlapi");
-		toolbox.add2BlackList("jcl-core");
-		toolbox.add2BlackList("objenesis");
-		toolbox.add2BlackList("cglib-nodep");
-		toolbox.add2BlackList("HermiT");
-		toolbox.add2BlackList("hamcrest-core");
-		toolbox.add2BlackList("mockito-all");
-		toolbox.add2BlackList("uos-core");
-		toolbox.add2BlackList("uos.tcp_udp.plugin");
-		toolbox.add2BlackList("/uos_core/target/classes");
-		toolbox.add2BlackList("uos-execution");
+		toolbox.add2BlackList(
+				"junit",
+				"log4j",
+				"hsqldb",
+				"owlapi",
+				"jcl-core",
+				"objenesis",
+				"cglib-nodep",
+				"HermiT",
+				"hamcrest-core",
+				"mockito-all",
+				"uos-core",
+				"uos.tcp_udp.plugin",
+				"/uos_core/target/classes",
+				"uos-execution");
 	}
 	
 	public ExecutionDriver(ClassToolbox myBox) {
 		this.toolbox = myBox;
 		driver = new UpDriver("uos.ExecutionDriver");
 		driver.addService("remoteExecution").addParameter("code", ParameterType.MANDATORY);
-		driver.addService("executeAgent");
-		driver.addService("listKnownClasses");
+		driver.addService("executeAgent")
+					.addParameter("epoch", ParameterType.OPTIONAL)
+					.addParameter("package", ParameterType.OPTIONAL);
+		driver.addService("listKnownClasses")
+					.addParameter("candidates", ParameterType.OPTIONAL);
 	}
 
 	public ClassToolbox toolbox() {return toolbox;}
 	
+	public GlobalsPool globals() {return globals;}
+	
+	public ScriptCache scripts() {return scripts;}
+	
+	/** @return How many received agents are waiting for a thread to run.*/
+	public int queuedAgents() {return agents.getQueue().size();}
+	
+	/** @return How many agents are being received or executed right now.*/
+	public int activeAgents() {return agents.getActiveCount();}
+	
 	public UpDriver getDriver() {	return driver;	}
 
-	public void init(Gateway gateway, InitialProperties properties, String instanceId) {this.gateway = gateway;}
+	public void init(Gateway gateway, InitialProperties properties, String instanceId) {
+		this.gateway = gateway;
+		initGlobals(properties);
+		initScripts(properties);
+		initAgents(properties);
+	}
 
-	public void destroy() {}
+	private void initGlobals(InitialProperties properties) {
+		int size = intProperty(properties, LUA_POOL_SIZE_KEY, GlobalsPool.DEFAULT_SIZE);
+		ResetPolicy policy = ResetPolicy.RESTORE;
+		String reset = stringProperty(properties, LUA_RESET_KEY);
+		if (reset != null) policy = ResetPolicy.valueOf(reset.trim().toUpperCase());
+		if (globals == null || size != globals.size() || policy != globals.policy()){
+			globals = new GlobalsPool(size, policy);
+		}
+	}
+	
+	private void initScripts(InitialProperties properties) {
+		int size = intProperty(properties, LUA_CACHE_SIZE_KEY, ScriptCache.DEFAULT_SIZE);
+		if (scripts == null || size != scripts.size()){
+			scripts = new ScriptCache(size);
+		}
+	}
+	
+	private void initAgents(InitialProperties properties) {
+		int threads = intProperty(properties, AGENT_THREADS_KEY, DEFAULT_AGENT_THREADS);
+		int queue = intProperty(properties, AGENT_QUEUE_KEY, DEFAULT_AGENT_QUEUE);
+		agentTimeout = intProperty(properties, AGENT_TIMEOUT_KEY, DEFAULT_AGENT_TIMEOUT);
+		if (agents == null 
+				|| threads != agents.getMaximumPoolSize() || queue != agentQueue){
+			ThreadPoolExecutor old = agents;
+			agentQueue = queue;
+			agents = createAgentPool(threads, queue);
+			if (old != null) old.shutdown();
+		}
+		if (watchdog == null){
+			watchdog = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "uExe-agent-watchdog");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		}
+		toolbox.setReceptionTimeout(agentTimeout);
+		toolbox.setLoaderCacheSize(
+				intProperty(properties, AGENT_LOADERS_KEY, toolbox.loaderCacheSize()));
+	}
+	
+	private static ThreadPoolExecutor createAgentPool(int threads, int queue) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 
+				60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queue),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "uExe-agent-"+count.incrementAndGet());
+					}
+				},
+				new ThreadPoolExecutor.AbortPolicy());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	private static String stringProperty(InitialProperties properties, String key) {
+		if (properties == null || properties.get(key) == null) return null;
+		return properties.get(key).toString();
+	}
+	
+	private static int intProperty(InitialProperties properties, String key, int defaultValue) {
+		String value = stringProperty(properties, key);
+		if (value == null) return defaultValue;
+		return Integer.parseInt(value.trim());
+	}
+
+	public void destroy() {
+		if (agents != null) agents.shutdown();
+		if (watchdog != null) watchdog.shutdown();
+		toolbox.close();
+	}
 
 	public List<UpDriver> getParent() {	return null;	}
 	
 	public void remoteExecution(Call call, Response response,
 			CallContext object) {
+		Globals _G = globals.borrow();
+		Scope scope = UosLuaCall.values().open();
 		try {
-			script_id++;
-			
 			for(String key: call.getParameters().keySet()){
-				UosLuaCall.values().setValue(script_id, key,call.getParameterString(key));
+				scope.setValue(key, call.getParameterString(key));
 			}
 			
-			StringBuffer script = new StringBuffer();
-			script.append("UOS_ID="+(script_id)+"\n");
-			script.append("require '"+UosLuaCall.class.getName()+"' \n");
-			script.append("function set( key, value) \n");
-			script.append("	Uos.set(UOS_ID,key,value)\n");
-			script.append("end\n");
-			script.append("function get( key) \n");
-			script.append("	return Uos.get(UOS_ID,key)\n");
-			script.append("end\n");
-			script.append(call.getParameter("code"));
-			Globals _G = JsePlatform.standardGlobals();
-			_G.load(new StringReader(script.toString()), "script_"+script_id).call();
+			LuaValue env = UosLuaCall.environment(scope, _G);
+			new LuaClosure(scripts.compile(_G, call.getParameterString("code"), "script"), env).call();
 			
-			response.addParameter("value", UosLuaCall.values().getValue(script_id, "value"));
+			response.addParameter("value", scope.getValue("value"));
 		} catch (Exception e) {
 			logger.log(Level.SEVERE,"Error handling Execution call. Cause:",e);
 			response.setError("Error handling Execution call. Cause:"+e.getMessage());
+		} finally {
+			UosLuaCall.values().release(scope);
+			globals.release(_G);
 		}
 	}
 
+	/**
+	 * Without "candidates" all known classes are listed, otherwise only the
+	 * candidates (a list of class names) that are known.
+	 */
 	public void listKnownClasses(Call call, Response response,
 			CallContext ctx) {
-		response.addParameter("classes", toolbox.listKnownClasses());
+		response.addParameter("epoch", toolbox.epoch());
+		Object candidates = call == null ? null : call.getParameter("candidates");
+		if (candidates == null){
+			response.addParameter("classes", toolbox.listKnownClasses());
+			return;
+		}
+		try {
+			response.addParameter("classes", 
+							toolbox.listKnownClasses(classNames(candidates)));
+		} catch (IOException e) {
+			response.setError("Candidates must be a list of class names.");
+		}
+	}
+	
+	/** The list may arrive as a List, as a JSON array or as its text.*/
+	private static List<String> classNames(Object list) throws IOException {
+		if (list instanceof String) list = mapper.readTree((String) list);
+		List<String> names = new ArrayList<String>();
+		if (list instanceof JsonNode && ((JsonNode) list).isArray()){
+			for (JsonNode name : (JsonNode) list){
+				names.add(name.asText());
+			}
+		}else if (list instanceof Collection){
+			for (Object name : (Collection<?>) list){
+				names.add(String.valueOf(name));
+			}
+		}else{
+			throw new IOException("Not a list: "+list);
+		}
+		return names;
 	}
 	
 	public void executeAgent(Call call, Response response,
@@ -143,6 +333,11 @@ public class ExecutionDriver implements UosDriver {
 				response.setError("No Data Stream, containing agent, was found.");
 				return;
 			}
+			String epoch = call.getParameterString("epoch");
+			if (epoch != null && !epoch.equals(toolbox.epoch())){
+				response.setError(AgentUtil.OUTDATED_CLASSES_ERROR);
+				return;
+			}
 			final DataInputStream agent = ctx.getDataInputStream();
 			final DataInputStream clazz;
 			
@@ -151,17 +346,27 @@ public class ExecutionDriver implements UosDriver {
 			if (call.getParameter("jar") != null) hasJar = true;
 			else	className = call.getParameterString("class");
 			
+			String pkgHash = hasJar ? call.getParameterString("package") : null;
+			ClassLoader known = pkgHash == null ? null : toolbox.loaderFor(pkgHash);
+			
 			/*Question: 
 					Should it receive the size of class/jar ? 
 					This could aid avoiding caching problems and even could 
 					help checking if the received data is OK.
 			 */
-			if (hasJar || className != null){
+			if (known != null){
+				// the sender won't send a package we already have
+				response.addParameter("cached", "true");
+				clazz = null;
+			}else if (hasJar || className != null){
 				clazz = ctx.getDataInputStream(1);
 			}else{
 				clazz = null;
 			}
-			new Thread(new AgentHandler(className, clazz, agent)).start();
+			agents.execute(new AgentHandler(className, pkgHash, known, clazz, agent));
+		} catch (RejectedExecutionException e) {
+			response.setError("Agent rejected since too many agents are waiting for execution.");
+			logger.log(Level.WARNING,"Agent rejected. Queued agents: "+queuedAgents());
 		} catch (Throwable e) {
 			response.setError("Something unexpected happened.");
 			logger.log(Level.SEVERE,"Problems executing agent.",e);
@@ -170,27 +375,51 @@ public class ExecutionDriver implements UosDriver {
 
 	class AgentHandler implements Runnable{
 		private String className;
+		private String pkgHash;
+		private ClassLoader known;
 		private DataInputStream clazz;
 		private DataInputStream agent;
 		
-		public AgentHandler(String className, DataInputStream clazz,DataInputStream agent) {
+		public AgentHandler(String className, String pkgHash, ClassLoader known,
+								DataInputStream clazz,DataInputStream agent) {
 			this.className = className;
+			this.pkgHash = pkgHash;
+			this.known = known;
 			this.clazz = clazz;
 			this.agent = agent;
 		}
 
 		public void run() {
+			try {
+				Object o = receive();
+				if (o instanceof Agent){
+					((Agent)o).run(gateway);
+				}else{
+					Method run = o.getClass().getMethod("run", Map.class);
+					run.invoke(o, new GatewayMap(gateway));
+				}
+			} catch (Exception e) {
+				logger.log(Level.SEVERE,"Problems on running agent",e);
+			}
+		}
+
+		private Object receive() throws Exception {
+			ReceptionWatch watch = new ReceptionWatch(Thread.currentThread(), clazz, agent);
+			if (agentTimeout > 0){
+				watch.deadline = watchdog.schedule(watch, agentTimeout, TimeUnit.MILLISECONDS);
+			}
 			try {
 				final ClassLoader loader;
-				if (className != null){
-					while (clazz.available() == 0){}
+				if (known != null){
+					loader = known;
+				}else if (className != null){
 					loader = toolbox.load(className, clazz);
 				}else if (clazz != null){
-					loader = toolbox.load(clazz);
+					// classes are defined while the rest of the jar arrives
+					loader = toolbox.loadPackage(clazz, pkgHash);
 				}else{
 					loader = null;
 				}
-				while (agent.available() == 0){}
 				ObjectInputStream reader = new ObjectInputStream(agent){
 					@Override
 					protected Class<?> resolveClass(ObjectStreamClass desc)
@@ -202,17 +431,53 @@ public class ExecutionDriver implements UosDriver {
 						}
 					}
 				};
-				Object o = reader.readObject();
-				if (o instanceof Agent){
-					((Agent)o).run(gateway);
-				}else{
-					Method run = o.getClass().getMethod("run", Map.class);
-					run.invoke(o, new GatewayMap(gateway));
-				}
+				return reader.readObject();
 			} catch (Exception e) {
-				logger.log(Level.SEVERE,"Problems on running agent",e);
+				if (watch.expired){
+					throw new IOException("Agent was not received after "+agentTimeout+" ms.");
+				}
+				throw e;
+			} finally {
+				watch.finish();
 			}
-		};
+		}
+	}
+	
+	/**
+	 * Aborts the reception of an agent when its deadline is reached. The 
+	 * streams are closed and the receiving thread is interrupted, so any
+	 * blocked read fails.
+	 */
+	static class ReceptionWatch implements Runnable{
+		private final Thread receiver;
+		private final InputStream[] streams;
+		private boolean done = false;
+		boolean expired = false;
+		Future<?> deadline;
+		
+		ReceptionWatch(Thread receiver, InputStream ... streams) {
+			this.receiver = receiver;
+			this.streams = streams;
+		}
+		
+		public synchronized void run() {
+			if (done) return;
+			expired = true;
+			for (InputStream stream : streams){
+				try {
+					if (stream != null) stream.close();
+				} catch (IOException e) {
+					logger.log(Level.FINE,"Problems closing agent stream",e);
+				}
+			}
+			receiver.interrupt();
+		}
+		
+		synchronized void finish() {
+			done = true;
+			if (deadline != null) deadline.cancel(false);
+			Thread.interrupted(); // a late expiration must not leak to the agent
+		}
 	}
 
 }
@@ -2,12 +2,20 @@ package org.unbiquitous.driver.execution.executeAgent;
 
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.unbiquitous.uos.core.UOSLogging;
@@ -45,20 +53,44 @@ public class AgentUtil {
 
 	private static final Logger logger = UOSLogging.getLogger();
 	private static final ObjectMapper mapper = new ObjectMapper();
+	
+	/** Returned by the target when the informed epoch isn't its current one. */
+	public static final String OUTDATED_CLASSES_ERROR = "Known classes changed since the informed epoch.";
+	
+	/** What each device (by name) knows about the classes sent to it. */
+	private static final ConcurrentMap<String, KnownClasses> devices = 
+										new ConcurrentHashMap<String, KnownClasses>();
 
 	private ClassToolbox toolbox = new ClassToolbox();
 	private static AgentUtil instance;
 
-	public static AgentUtil getInstance() {
-		if (AgentUtil.instance != null)
-			return AgentUtil.instance;
-		return new AgentUtil();
+	/** 
+	 * The instance is kept, so every move shares the same toolbox (its 
+	 * classpath index, the dependencies already walked and the packages 
+	 * already built).
+	 */
+	public static synchronized AgentUtil getInstance() {
+		if (AgentUtil.instance == null)
+			AgentUtil.instance = new AgentUtil();
+		return AgentUtil.instance;
 	}
 
-	public static void setInstance(AgentUtil instance) {
+	/** The replaced instance is closed. */
+	public static synchronized void setInstance(AgentUtil instance) {
+		if (AgentUtil.instance != null && AgentUtil.instance != instance)
+			AgentUtil.instance.close();
 		AgentUtil.instance = instance;
 	}
 
+	/** Releases the jars the toolbox keeps open, it can still move agents. */
+	public void close() {
+		toolbox.close();
+	}
+
+	ClassToolbox toolbox() {
+		return toolbox;
+	}
+
 	public void move(Serializable agent, File pkg, UpDevice target, Gateway gateway) throws Exception {
 		toolbox.setPackageFor(agent.getClass(), pkg);
 		move(agent, target, gateway);
@@ -72,21 +104,125 @@ public class AgentUtil {
 		if (agent.getClass().getModifiers() != Modifier.PUBLIC)
 			throw new RuntimeException("Agent class must be public");
 
-		callExecute(agent, target, gateway, sendPackage, knownClasses(target, gateway));
+		if (!sendPackage) {
+			callExecute(agent, target, gateway, false, null, null);
+			return;
+		}
+		List<String> candidates = toolbox.dependenciesOf(agent.getClass());
+		KnownClasses known = knownClasses(target, gateway, candidates);
+		if (!callExecute(agent, target, gateway, true, known.epoch, known.among(candidates))) {
+			// what we knew about the target is outdated, ask again
+			if (target.getName() != null) devices.remove(target.getName());
+			known = knownClasses(target, gateway, candidates);
+			if (!callExecute(agent, target, gateway, true, known.epoch, known.among(candidates))) {
+				logger.warning("Agent not moved since the classes of "+target.getName()
+								+" keep changing.");
+			}
+		}
 	}
 
-	private void callExecute(Serializable agent, UpDevice target, Gateway gateway, boolean sendPackage,
-			List<String> knownClasses) throws ServiceCallException, IOException, Exception {
-		Response r = callExecute(target, gateway);
-		sendAgent(agent, r);
-		if (sendPackage) {
-			sendPackage(agent, target, r, knownClasses);
+	/** 
+	 * The hash of the package is announced, so the target doesn't need it 
+	 * when it already has the same package. Otherwise the package is sent 
+	 * while the agent is, so the target can define classes as they arrive.
+	 * 
+	 * @return false if the target refused the agent since its epoch changed. 
+	 * @throws ServiceCallException If the target refused the agent for any 
+	 * other reason (like having too many agents waiting), nothing is sent.
+	 */
+	private boolean callExecute(Serializable agent, UpDevice target, Gateway gateway, boolean sendPackage,
+			String epoch, List<String> knownClasses) throws ServiceCallException, IOException, Exception {
+		byte[] pkg = sendPackage ? packageFor(agent, target, knownClasses) : null;
+		Response r = callExecute(target, gateway, pkg != null, epoch, 
+									pkg == null ? null : toolbox.hashOf(pkg));
+		if (OUTDATED_CLASSES_ERROR.equals(r.getError())) return false;
+		if (r.getError() != null) {
+			// nobody will read the streams on the other side
+			throw new ServiceCallException("Agent refused by "+target.getName()+": "+r.getError());
+		}
+		if (pkg == null) {
+			sendAgent(agent, r);
+		} else if ("true".equals(String.valueOf(r.getResponseData("cached")))) {
+			sendAgent(agent, r);
+			r.getMessageContext().getDataOutputStream(1).close();
+		} else {
+			Future<?> sending = sendPackage(r, pkg);
+			boolean sent = false;
+			try {
+				sendAgent(agent, r);
+				sending.get();
+				sent = true;
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+				throw new RuntimeException(e.getCause());
+			} finally {
+				if (!sent) abortPackage(sending, r);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * What a device knows about a set of classes, valid while the device
+	 * keeps the same epoch.
+	 */
+	private static class KnownClasses {
+		final String epoch;
+		/** null when the target didn't inform which classes it knows. */
+		final Set<String> known;
+		final Set<String> unknown = new HashSet<String>();
+
+		KnownClasses(String epoch, List<String> candidates, List<String> known) {
+			this.epoch = epoch;
+			this.known = known == null ? null : new HashSet<String>(known);
+			if (known != null) {
+				for (String candidate : candidates) {
+					if (!this.known.contains(candidate)) unknown.add(candidate);
+				}
+			}
+		}
+
+		/** Joins two answers of the same epoch. */
+		KnownClasses(KnownClasses first, KnownClasses second) {
+			this.epoch = first.epoch;
+			this.known = new HashSet<String>(first.known);
+			this.known.addAll(second.known);
+			this.unknown.addAll(first.unknown);
+			this.unknown.addAll(second.unknown);
+		}
+
+		boolean covers(List<String> candidates) {
+			if (known == null) return false;
+			for (String candidate : candidates) {
+				if (!known.contains(candidate) && !unknown.contains(candidate)) return false;
+			}
+			return true;
+		}
+
+		List<String> among(List<String> candidates) {
+			if (known == null) return null;
+			List<String> result = new ArrayList<String>();
+			for (String candidate : candidates) {
+				if (known.contains(candidate)) result.add(candidate);
+			}
+			return result;
 		}
 	}
 
+	/**
+	 * Only the classes the agent depends on are checked, so the target 
+	 * doesn't have to send its whole classpath. Answers are kept by device
+	 * while its epoch doesn't change, so repeated moves skip this call.
+	 */
 	@SuppressWarnings("unchecked")
-	private List<String> knownClasses(UpDevice target, Gateway gateway) throws ServiceCallException {
+	private KnownClasses knownClasses(UpDevice target, Gateway gateway, 
+							List<String> candidates) throws ServiceCallException {
+		String device = target.getName();
+		KnownClasses cached = device == null ? null : devices.get(device);
+		if (cached != null && cached.covers(candidates)) return cached;
+		
 		Call listKnownClasses = new Call("uos.ExecutionDriver", "listKnownClasses");
+		listKnownClasses.addParameter("candidates", candidates);
 		Response rl = gateway.callService(target, listKnownClasses);
 		List<String> knownClasses = null;
 		if (rl.getResponseData("classes") instanceof ArrayNode) {
@@ -99,37 +235,49 @@ public class AgentUtil {
 		} else {
 			knownClasses = (List<String>) rl.getResponseData("classes");
 		}
-		return knownClasses;
+		
+		Object epoch = rl.getResponseData("epoch");
+		KnownClasses fresh = new KnownClasses(epoch == null ? null : epoch.toString(), 
+												candidates, knownClasses);
+		if (device != null && fresh.epoch != null && fresh.known != null) {
+			if (cached != null && fresh.epoch.equals(cached.epoch)) {
+				fresh = new KnownClasses(cached, fresh);
+			}
+			devices.put(device, fresh);
+		}
+		return fresh;
 	}
 
-	private void sendPackage(Serializable agent, UpDevice target, Response r, List<String> knownClasses)
+	/** Packages are kept in memory, so moving doesn't touch the disk. */
+	private byte[] packageFor(Serializable agent, UpDevice target, List<String> knownClasses)
 			throws Exception {
 		logger.fine("Target platform is: " + target.getProperty("platform"));
 		if ("Dalvik".equalsIgnoreCase((String) target.getProperty("platform"))) {
-			sendDalvik(agent, r, knownClasses);
+			return toolbox.packageDalvikBytesFor(agent.getClass(), knownClasses);
 		} else {
-			sendJar(agent, r, knownClasses);
+			return toolbox.packageBytesFor(agent.getClass(), knownClasses);
 		}
 	}
 
-	private void sendJar(Serializable agent, Response r, List<String> knownClasses) throws Exception {
-		sendPackage(r, toolbox.packageJarFor(agent.getClass(), knownClasses));
-	}
-
-	private void sendDalvik(Serializable agent, Response r, List<String> knownClasses) throws Exception {
-		sendPackage(r, toolbox.packageDalvikFor(agent.getClass(), knownClasses));
+	private Future<?> sendPackage(final Response r, final byte[] pkg) {
+		return ClassToolbox.transfers.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				final DataOutputStream jar_writer = r.getMessageContext().getDataOutputStream(1);
+				jar_writer.write(pkg);
+				jar_writer.close();
+				return null;
+			}
+		});
 	}
 
-	private void sendPackage(Response r, File pkg) throws IOException {
-		FileInputStream reader = new FileInputStream(pkg);
-		byte[] buff = new byte[1024];
-		int read = 0;
-		final DataOutputStream jar_writer = r.getMessageContext().getDataOutputStream(1);
-		while ((read = reader.read(buff)) != -1) {
-			jar_writer.write(buff, 0, read);
+	/** The target must not be left waiting for the rest of the package. */
+	private void abortPackage(Future<?> sending, Response r) {
+		sending.cancel(true);
+		try {
+			r.getMessageContext().getDataOutputStream(1).close();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Problems closing the package channel.", e);
 		}
-		jar_writer.close();
-		reader.close();
 	}
 
 	private void sendAgent(Serializable agent, Response r) throws IOException {
@@ -138,11 +286,20 @@ public class AgentUtil {
 		writer_agent.close();
 	}
 
-	private Response callExecute(UpDevice target, Gateway gateway) throws ServiceCallException {
+	private Response callExecute(UpDevice target, Gateway gateway, boolean sendPackage, 
+			String epoch, String pkgHash) throws ServiceCallException {
 		Call execute = new Call("uos.ExecutionDriver", "executeAgent");
 		execute.setChannels(2);
 		execute.setServiceType(ServiceType.STREAM);
-		execute.addParameter("jar", "true");
+		if (sendPackage) {
+			execute.addParameter("jar", "true");
+		}
+		if (epoch != null) {
+			execute.addParameter("epoch", epoch);
+		}
+		if (pkgHash != null) {
+			execute.addParameter("package", pkgHash);
+		}
 
 		Response r = gateway.callService(target, execute);
 		return r;
@@ -1,133 +1,245 @@
 package org.unbiquitous.driver.execution.executeAgent;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
+import org.unbiquitous.uos.core.UOSLogging;
+
+/**
+ * Knows where each class on the classpath came from.
+ * 
+ * The classpath is indexed on a background thread started by {@link #init()},
+ * only the calls that actually need the index wait for it to finish.
+ */
 class ClassFinder {
+	private static final Logger logger = UOSLogging.getLogger();
+	
+	/** How many threads index the classpath, 1 makes it serial. */
+	public static final String INDEX_THREADS_PROPERTY = "ubiquitos.execution.indexThreads";
 
-	protected Set<String> blacklist = new HashSet<String>();
-	protected Set<String> blacklistedClasses = new HashSet<String>();
+	protected Set<String> blacklist = Collections.newSetFromMap(
+										new ConcurrentHashMap<String, Boolean>());
 
-	protected Map<String,File> classToPath = new HashMap<String,File>();
+	private final ClassIndex classes = new ClassIndex();
+	private final ClasspathCache index;
+	private FutureTask<Void> indexing;
+	// indexed and nothing left to blacklist, lookups don't need the lock
+	private volatile boolean ready = false;
+	private final List<String> pendingBlacklist = new ArrayList<String>();
 	
-	public void add2BlackList(String jarName) {	
-		blacklist.add(jarName);
-		for (String entryPath : System.getProperty("java.class.path").split(
-				System.getProperty("path.separator"))) {
-			if (inBlackList(entryPath)) {
-				initPath(entryPath, false);
+	private final OpenJars openJars = new OpenJars();
+	
+	ClassFinder() {
+		this(ClasspathCache.fromSystem());
+	}
+	
+	ClassFinder(ClasspathCache index) {
+		this.index = index;
+	}
+	
+	/**
+	 * The jars are only excluded the next time the index is needed, all 
+	 * jars blacklisted until then are excluded in a single classpath pass.
+	 */
+	public synchronized void add2BlackList(String ... jarNames) {	
+		for (String jarName : jarNames){
+			if (blacklist.add(jarName)){
+				pendingBlacklist.add(jarName);
+				ready = false;
 			}
 		}
 	}
 	
 	@SuppressWarnings("serial")
 	public List<String> knownClasses(){
+		awaitIndex();
 		return new ArrayList<String>(){{
-			addAll(classToPath.keySet());
+			addAll(classes.names());
 		}};
 	}
 	
-	protected void init(){
-		for (String entryPath : System.getProperty("java.class.path").split(
-				System.getProperty("path.separator"))) {
-			initPath(entryPath, true);
+	/** @return Which of the candidates are known, blacklisted ones included. */
+	public List<String> knownClasses(Collection<String> candidates){
+		awaitIndex();
+		List<String> known = new ArrayList<String>();
+		for (String candidate : candidates){
+			if (classes.contains(candidate)) known.add(candidate);
 		}
+		return known;
 	}
-
-	private void initPath(String entryPath, boolean include){
-		try {
-			File entry = new File(entryPath);
-			if (entry.isDirectory()) {
-				populaterFileOnDir(entry.getPath(),entry,include);
-			} else if (entry.getName().endsWith(".jar")) {
-				populateClassesOnAJar(entry.getPath(), entry, include);
+	
+	/** @return Changes whenever the known classes change. */
+	public String epoch(){
+		awaitIndex();
+		return Long.toHexString(classes.digest());
+	}
+	
+	protected synchronized void init(){
+		if (indexing != null) return;
+		indexing = new FutureTask<Void>(new Callable<Void>() {
+			public Void call() throws Exception {
+				indexClasspath();
+				return null;
 			}
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		});
+		Thread indexer = new Thread(indexing, "uExe-class-index");
+		indexer.setDaemon(true);
+		indexer.start();
 	}
 	
-	private void populaterFileOnDir(String parentPath, File entry, boolean include)
-			throws IOException {
-		if (entry.isDirectory()) {
-			for (File child : entry.listFiles()) {
-				populaterFileOnDir(parentPath,child, include);
+	/**
+	 * Blocks until the classpath is indexed and applies the jars blacklisted
+	 * meanwhile. After that it returns right away until something else is
+	 * blacklisted.
+	 */
+	private void awaitIndex() {
+		if (ready) return;
+		FutureTask<Void> indexing;
+		synchronized (this) {
+			indexing = this.indexing;
+		}
+		if (indexing == null) return;
+		try {
+			indexing.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while indexing the classpath.", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Not possible to index the classpath.", e.getCause());
+		}
+		synchronized (this) {
+			applyPendingBlacklist();
+			ready = true;
+		}
+	}
+
+	private synchronized void applyPendingBlacklist() {
+		if (pendingBlacklist.isEmpty()) return;
+		for (String entryPath : classpath()) {
+			if (inBlackList(entryPath, pendingBlacklist)) {
+				initPath(entryPath, false);
 			}
-		} else if (entry.getPath().endsWith(".class")) {
-			String path = entry.getPath()
-					.replace(parentPath, "")
-					.replace(".class", "")
-					.replace("/", ".")
-					;
-			if(path.startsWith(".")){
-				path = path.substring(1);
+		}
+		pendingBlacklist.clear();
+	}
+
+	/**
+	 * Entries (and the subdirectories of each directory) are scanned in 
+	 * parallel but registered in classpath order, so the index is the same 
+	 * a serial walk would build.
+	 */
+	private void indexClasspath() {
+		int threads = indexThreads();
+		ExecutorService pool = threads > 1 ? 
+				Executors.newFixedThreadPool(threads, new IndexerFactory()) : null;
+		try {
+			List<File> entries = new ArrayList<File>();
+			List<ClasspathCache.Scan> scans = new ArrayList<ClasspathCache.Scan>();
+			for (String entryPath : classpath()) {
+				File entry = new File(entryPath);
+				if (isIndexable(entry)){
+					entries.add(entry);
+					scans.add(index.scan(entry, pool));
+				}
 			}
-			if (include){
-				classToPath.put(path, entry);
-			}else{
-				blacklistedClasses.add(path);
+			for (int i = 0; i < entries.size(); i++){
+				register(entries.get(i), scans.get(i), true);
 			}
+		} finally {
+			if (pool != null) pool.shutdown();
 		}
+		// while the scanned entries are still at hand
+		applyPendingBlacklist();
+		index.save();
+		index.release();
 	}
 	
-	private void populateClassesOnAJar(String parentPath, File jar, 
-												boolean include)
-			throws FileNotFoundException, IOException {
-		ZipInputStream zis = new ZipInputStream(new BufferedInputStream(
-				new FileInputStream(jar)));
-		ZipEntry j;
-		while ((j = zis.getNextEntry()) != null) {
-			final int BUFFER = 2048;
-			byte data[] = new byte[BUFFER];
-			while ((zis.read(data, 0, BUFFER)) != -1) {
-				if (j.getName().endsWith(".class")) {
-					String path = j.getName()
-							.replace(parentPath, "")
-							.replace(".class", "")
-							.replace("/", ".")
-							;
-					if (include){
-						classToPath.put(path, jar);
-					}else{
-						blacklistedClasses.add(path);
-					}
-				}
+	private static int indexThreads() {
+		String threads = System.getProperty(INDEX_THREADS_PROPERTY);
+		if (threads != null) return Integer.parseInt(threads);
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	private static class IndexerFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "uExe-class-index-"+count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+	
+	private static String[] classpath() {
+		return System.getProperty("java.class.path").split(
+									System.getProperty("path.separator"));
+	}
+	
+	private static boolean isIndexable(File entry) {
+		return entry.isDirectory() || entry.getName().endsWith(".jar");
+	}
+
+	private void initPath(String entryPath, boolean include){
+		File entry = new File(entryPath);
+		if (isIndexable(entry)) {
+			register(entry, index.scan(entry, null), include);
+		}
+	}
+	
+	private void register(File entry, ClasspathCache.Scan scan, boolean include){
+		try {
+			if (include){
+				classes.add(entry, scan.classes());
+			}else{
+				classes.blacklist(scan.classes());
 			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Not possible to index the classes of "+entry, e);
 		}
-		zis.close();
 	}
 	
 	protected InputStream findClass(Class<?> clazz, List<String> extraBlacklist) 
 			throws IOException {
+		return findClass(clazz.getName(), extraBlacklist);
+	}
+	
+	/** Finds the class by its name, so the class is never loaded. */
+	protected InputStream findClass(String name, List<String> extraBlacklist) 
+			throws IOException {
+		awaitIndex();
 		
-		if (extraBlacklist != null && extraBlacklist.contains(clazz.getName())){
-			return null;
-		}
-		
-		if(blacklistedClasses.contains(clazz.getName())){
+		if (extraBlacklist != null && extraBlacklist.contains(name)){
 			return null;
 		}
 		
-		if (classToPath.containsKey(clazz.getName())){
-			File file = classToPath.get(clazz.getName());
+		File file = classes.locate(name);
+		if (file != null){
 			if(file.getPath().endsWith(".class")){
 				return new FileInputStream(file);
 			}else if (file.getPath().endsWith(".jar")){
-				String className = clazz.getName().replace('.', File.separatorChar);
+				String className = name.replace('.', '/');
 				return findClassFileOnAJar(className, file);
 			}
 		}
@@ -135,7 +247,27 @@ class ClassFinder {
 		return null;
 	}
 
-	private boolean inBlackList(String path) {
+	/** @return If findClass would find the class, without reading it. */
+	protected boolean locates(String name, List<String> extraBlacklist) {
+		awaitIndex();
+		if (extraBlacklist != null && extraBlacklist.contains(name)){
+			return false;
+		}
+		File file = classes.locate(name);
+		return file != null && (file.getPath().endsWith(".class") 
+								|| file.getPath().endsWith(".jar"));
+	}
+
+	/** Closes the jars kept open for lookups, they're opened again if needed. */
+	void close() {
+		openJars.close();
+	}
+
+	int openedJars() {
+		return openJars.opened();
+	}
+
+	private static boolean inBlackList(String path, List<String> blacklist) {
 		for (String black : blacklist){
 			if (path.contains(black)) {
 				return true;
@@ -144,32 +276,47 @@ class ClassFinder {
 		return false;
 	}
 
-	private InputStream findClassFileOnAJar(String className, File jar)
+	/**
+	 * Reads a single entry using the jar's central directory. Recently used
+	 * jars are kept open so later lookups don't have to parse it again.
+	 */
+	private InputStream findClassFileOnAJar(String className, File file)
 			throws FileNotFoundException, IOException {
-		ZipInputStream zis = new ZipInputStream(new BufferedInputStream(
-				new FileInputStream(jar)));
-		ZipEntry j;
-		List<Byte> bytes = new ArrayList<Byte>();
-		while ((j = zis.getNextEntry()) != null) {
-			final int BUFFER = 2048;
-			byte data[] = new byte[BUFFER];
-			int count = 0;
-			while ((count = zis.read(data, 0, BUFFER)) != -1) {
-				if (j.getName().equals(className + ".class")) {
-					for (int i = 0; i < count; i++)
-						bytes.add(data[i]);
-				}
-			}
-			if (!bytes.isEmpty()) {
-				byte[] buf = new byte[bytes.size()];
-				for (int i = 0; i < bytes.size(); i++)
-					buf[i] = bytes.get(i);
-				zis.close();
-				return new ByteArrayInputStream(buf);
+		OpenJars.Jar jar = openJars.acquire(file);
+		try {
+			ZipEntry entry = jar.zip.getEntry(className + ".class");
+			if (entry == null) return null;
+			InputStream in = jar.zip.getInputStream(entry);
+			try {
+				return new ByteArrayInputStream(readEntry(in, entry.getSize()));
+			} finally {
+				in.close();
 			}
+		} finally {
+			openJars.release(jar);
+		}
+	}
 
+	private static byte[] readEntry(InputStream in, long size) throws IOException {
+		if (size >= 0){
+			byte[] buf = new byte[(int) size];
+			int offset = 0;
+			int count;
+			while (offset < buf.length) {
+				count = in.read(buf, offset, buf.length - offset);
+				if (count == -1) {
+					throw new EOFException("Entry ended after "+offset+" of "+size+" bytes.");
+				}
+				offset += count;
+			}
+			return buf;
 		}
-		zis.close();
-		return null;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] data = new byte[2048];
+		int count;
+		while ((count = in.read(data)) != -1) {
+			out.write(data, 0, count);
+		}
+		return out.toByteArray();
 	}
-}
\ No newline at end of file
+}
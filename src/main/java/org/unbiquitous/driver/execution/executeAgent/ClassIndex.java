@@ -0,0 +1,286 @@
+package org.unbiquitous.driver.execution.executeAgent;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact map from class names to the classpath entry (root) they came from.
+ *
+ * Instead of a String and a File per class, each class is kept as the id of
+ * its package (package names are stored once), its simple name and the id of
+ * its root. Classes are kept on parallel arrays sorted by package and simple
+ * name, so lookups are binary searches.
+ *
+ * Classes added later override the ones with the same name added before,
+ * as a Map would do. Blacklisted classes are still known, but can't be
+ * located.
+ *
+ * Changes are merged into an immutable {@link Sorted} copy which is then
+ * published, so reads only take the lock when there is something to merge.
+ * Once the classpath is indexed lookups don't block each other.
+ *
+ * @author Fabricio Nogueira Buzeto
+ *
+ */
+class ClassIndex {
+	private static final int BLACKLISTED = -1;
+
+	private final List<File> roots = new ArrayList<File>();
+	private final List<Boolean> directories = new ArrayList<Boolean>();
+	private final Map<String, Integer> packageIds = new HashMap<String, Integer>();
+	private final List<String> packages = new ArrayList<String>();
+
+	private volatile Sorted sorted = new Sorted(new HashMap<String, Integer>(), 
+			new String[0], new File[0], new boolean[0], 
+			new int[0], new String[0], new int[0], 0);
+
+	// added after the last sort
+	private volatile boolean dirty = false;
+	private int pending = 0;
+	private int[] pendingPackageOf = new int[16];
+	private String[] pendingSimpleNames = new String[16];
+	private int[] pendingRootOf = new int[16];
+
+	/** Indexes the classes of a jar or directory. */
+	synchronized void add(File root, List<String> classes) {
+		int rootId = roots.size();
+		roots.add(root);
+		directories.add(root.isDirectory());
+		for (String clazz : classes){
+			append(clazz, rootId);
+		}
+	}
+
+	/** The classes are kept as known, but aren't located anymore. */
+	synchronized void blacklist(List<String> classes) {
+		compact();
+		Sorted current = sorted;
+		int[] rootOf = current.rootOf.clone();
+		for (String clazz : classes){
+			int position = current.find(clazz);
+			if (position >= 0){
+				rootOf[position] = BLACKLISTED;
+			}else{
+				append(clazz, BLACKLISTED);
+			}
+		}
+		sorted = current.withRoots(rootOf);
+	}
+
+	/**
+	 * @return The .class file (for directories) or jar where the class is,
+	 * null if it's unknown or blacklisted.
+	 */
+	File locate(String className) {
+		Sorted current = current();
+		int position = current.find(className);
+		if (position < 0 || current.rootOf[position] == BLACKLISTED) return null;
+		File root = current.roots[current.rootOf[position]];
+		if (current.directories[current.rootOf[position]]){
+			return new File(root, className.replace('.', File.separatorChar) + ".class");
+		}
+		return root;
+	}
+
+	/** @return The name of every indexed class, blacklisted ones included. */
+	List<String> names() {
+		Sorted current = current();
+		List<String> names = new ArrayList<String>(current.simpleNames.length);
+		for (int i = 0; i < current.simpleNames.length; i++){
+			names.add(current.nameOf(i));
+		}
+		return names;
+	}
+
+	boolean contains(String className) {
+		return current().find(className) >= 0;
+	}
+
+	/** 
+	 * @return A hash of all indexed names, it only changes if a class is
+	 * added or removed.
+	 */
+	long digest() {
+		return current().digest;
+	}
+
+	int size() {
+		return current().simpleNames.length;
+	}
+
+	/** @return The sorted classes, merging the pending ones if needed. */
+	private Sorted current() {
+		if (!dirty) return sorted;
+		synchronized (this) {
+			compact();
+			return sorted;
+		}
+	}
+
+	private void append(String className, int rootId) {
+		if (pending == pendingSimpleNames.length){
+			int capacity = pending * 2;
+			pendingPackageOf = Arrays.copyOf(pendingPackageOf, capacity);
+			pendingSimpleNames = Arrays.copyOf(pendingSimpleNames, capacity);
+			pendingRootOf = Arrays.copyOf(pendingRootOf, capacity);
+		}
+		int dot = className.lastIndexOf('.');
+		pendingPackageOf[pending] = packageId(dot < 0 ? "" : className.substring(0, dot));
+		pendingSimpleNames[pending] = className.substring(dot + 1);
+		pendingRootOf[pending] = rootId;
+		pending++;
+		dirty = true;
+	}
+
+	private int packageId(String pkg) {
+		Integer id = packageIds.get(pkg);
+		if (id == null){
+			id = packages.size();
+			packages.add(pkg);
+			packageIds.put(pkg, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Merges the classes added since last time into new sorted arrays. The
+	 * sort is stable, so among equal names the last one added wins.
+	 */
+	private void compact() {
+		if (pending == 0) return;
+		Sorted current = sorted;
+		int known = current.simpleNames.length;
+		int total = known + pending;
+		final int[] allPackages = Arrays.copyOf(current.packageOf, total);
+		final String[] allNames = Arrays.copyOf(current.simpleNames, total);
+		int[] allRoots = Arrays.copyOf(current.rootOf, total);
+		System.arraycopy(pendingPackageOf, 0, allPackages, known, pending);
+		System.arraycopy(pendingSimpleNames, 0, allNames, known, pending);
+		System.arraycopy(pendingRootOf, 0, allRoots, known, pending);
+
+		Integer[] order = new Integer[total];
+		for (int i = 0; i < total; i++) order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return compareKeys(allPackages[a], allNames[a], allPackages[b], allNames[b]);
+			}
+		});
+
+		int unique = 0;
+		int[] sortedPackages = new int[total];
+		String[] sortedNames = new String[total];
+		int[] sortedRoots = new int[total];
+		for (int i = 0; i < total; i++){
+			int position = order[i];
+			if (i + 1 < total){
+				int next = order[i + 1];
+				if (compareKeys(allPackages[position], allNames[position],
+								allPackages[next], allNames[next]) == 0) continue;
+			}
+			sortedPackages[unique] = allPackages[position];
+			sortedNames[unique] = allNames[position];
+			sortedRoots[unique] = allRoots[position];
+			unique++;
+		}
+		long digest = 0;
+		for (int i = 0; i < unique; i++){
+			// a sum doesn't depend on the order packages were found
+			digest += hash(packages.get(sortedPackages[i]), sortedNames[i]);
+		}
+		boolean[] isDirectory = new boolean[directories.size()];
+		for (int i = 0; i < isDirectory.length; i++) isDirectory[i] = directories.get(i);
+
+		sorted = new Sorted(new HashMap<String, Integer>(packageIds),
+				packages.toArray(new String[packages.size()]),
+				roots.toArray(new File[roots.size()]), isDirectory,
+				Arrays.copyOf(sortedPackages, unique),
+				Arrays.copyOf(sortedNames, unique),
+				Arrays.copyOf(sortedRoots, unique), digest);
+
+		pending = 0;
+		pendingPackageOf = new int[16];
+		pendingSimpleNames = new String[16];
+		pendingRootOf = new int[16];
+		dirty = false;
+	}
+
+	/** 
+	 * Classes sorted by (package, simple name) on parallel arrays. Never 
+	 * changed once published.
+	 */
+	private static class Sorted {
+		final Map<String, Integer> packageIds;
+		final String[] packages;
+		final File[] roots;
+		final boolean[] directories;
+		final int[] packageOf;
+		final String[] simpleNames;
+		final int[] rootOf;
+		final long digest;
+
+		Sorted(Map<String, Integer> packageIds, String[] packages, 
+				File[] roots, boolean[] directories, 
+				int[] packageOf, String[] simpleNames, int[] rootOf, long digest) {
+			this.packageIds = packageIds;
+			this.packages = packages;
+			this.roots = roots;
+			this.directories = directories;
+			this.packageOf = packageOf;
+			this.simpleNames = simpleNames;
+			this.rootOf = rootOf;
+			this.digest = digest;
+		}
+
+		Sorted withRoots(int[] rootOf) {
+			return new Sorted(packageIds, packages, roots, directories, 
+								packageOf, simpleNames, rootOf, digest);
+		}
+
+		int find(String className) {
+			int dot = className.lastIndexOf('.');
+			Integer pkg = packageIds.get(dot < 0 ? "" : className.substring(0, dot));
+			if (pkg == null) return -1;
+			String simpleName = className.substring(dot + 1);
+			int low = 0;
+			int high = simpleNames.length - 1;
+			while (low <= high){
+				int middle = (low + high) >>> 1;
+				int comparison = compareKeys(packageOf[middle], simpleNames[middle],
+												pkg, simpleName);
+				if (comparison < 0){
+					low = middle + 1;
+				}else if (comparison > 0){
+					high = middle - 1;
+				}else{
+					return middle;
+				}
+			}
+			return -1;
+		}
+
+		String nameOf(int position) {
+			String pkgName = packages[packageOf[position]];
+			String simpleName = simpleNames[position];
+			return pkgName.length() == 0 ? simpleName : pkgName + "." + simpleName;
+		}
+	}
+
+	private static long hash(String pkg, String simpleName) {
+		long h = pkg.hashCode() * 0x9E3779B97F4A7C15L ^ simpleName.hashCode();
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		return h ^ (h >>> 33);
+	}
+
+	private static int compareKeys(int pkgA, String nameA, int pkgB, String nameB) {
+		if (pkgA != pkgB) return pkgA < pkgB ? -1 : 1;
+		return nameA.compareTo(nameB);
+	}
+}
@@ -1,7 +1,9 @@
 package org.unbiquitous.driver.execution.executeAgent;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -10,10 +12,23 @@ import java.io.InputStreamReader;
 import java.lang.reflect.Constructor;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.util.HashMap;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -27,19 +42,63 @@ import java.util.logging.Logger;
  */
 public class ClassToolbox {
 	private static Logger logger = Logger.getLogger(ClassToolbox.class.getName());
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	
+	/** How many packages can be moved in background at the same time. */
+	static final int TRANSFER_THREADS = 16;
+	/** How long, in milliseconds, a package can take to be received. */
+	public static final long DEFAULT_RECEPTION_TIMEOUT = 60000;
+	
+	/** 
+	 * Threads that move packages while agents are (de)serialized. When all
+	 * are busy the package is moved by the caller itself, before the agent.
+	 */
+	static final ExecutorService transfers = new ThreadPoolExecutor(0, TRANSFER_THREADS,
+			60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "uExe-transfer-"+count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			},
+			new ThreadPoolExecutor.CallerRunsPolicy());
+	
+	/** Aborts the receptions that outlive their timeout. */
+	private static final ScheduledExecutorService deadlines = 
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "uExe-transfer-deadline");
+					t.setDaemon(true);
+					return t;
+				}
+			});
 	
 	private ClassFinder finder = new ClassFinder();
-	private Map<Class<?>,File> package_cache = new HashMap<Class<?>, File>();  
+	private Map<Class<?>,File> package_cache = new ConcurrentHashMap<Class<?>, File>();
+	private final PackageCache built_packages = new PackageCache();
+	private volatile LoaderCache received_packages = new LoaderCache();
+	private volatile DependencyGraph dependencies = new DependencyGraph(null);
+	private volatile long receptionTimeout = DEFAULT_RECEPTION_TIMEOUT;
 	
 	public ClassToolbox() {
 		finder.init();
 	}
 	
-	public void add2BlackList(String jarName) {	
-		finder.add2BlackList(jarName);
+	public void add2BlackList(String ... jarNames) {	
+		finder.add2BlackList(jarNames);
 	}
 	public Set<String> blacklist(){ return finder.blacklist;};
 
+	/** 
+	 * Releases the jars kept open to find classes. The toolbox can still be 
+	 * used, they're opened again when needed.
+	 */
+	public void close() {
+		finder.close();
+	}
+	
 	public void setPackageFor(Class<?> clazz, File jar) {
 		package_cache.put(clazz, jar);
 	}
@@ -53,16 +112,42 @@ public class ClassToolbox {
 				throws IOException {
 		return finder.findClass(clazz, extraBlacklist);
 	}
+	
+	protected InputStream findClass(String className, List<String> extraBlacklist)
+				throws IOException {
+		return finder.findClass(className, extraBlacklist);
+	}
 
+	protected boolean locates(String className, List<String> extraBlacklist){
+		return finder.locates(className, extraBlacklist);
+	}
+	
 	public File packageJarFor(Class<?> clazz) throws Exception {
 		return packageJarFor(clazz, null);
 	}
 	
+	/** The package as a file, it's only written when asked this way. */
 	public File packageJarFor(Class<?> clazz, List<String> extraBlacklist)
 			throws Exception {
 		if (package_cache.containsKey(clazz)) return package_cache.get(clazz);
-		return new JarPackager(this)
-					.packageJar(clazz, platform.createTempDir(), extraBlacklist);
+		String key = PackageCache.keyFor("jar", clazz, blacklist(), extraBlacklist);
+		jarFor(key, clazz, extraBlacklist);
+		return built_packages.fileFor(key);
+	}
+	
+	/** @return The content of the jar with the class and its dependencies.*/
+	public byte[] packageBytesFor(Class<?> clazz, List<String> extraBlacklist)
+			throws Exception {
+		if (package_cache.containsKey(clazz)) return readFile(package_cache.get(clazz));
+		String key = PackageCache.keyFor("jar", clazz, blacklist(), extraBlacklist);
+		return jarFor(key, clazz, extraBlacklist);
+	}
+	
+	private byte[] jarFor(String key, Class<?> clazz, List<String> extraBlacklist)
+			throws Exception {
+		byte[] cached = built_packages.get(key);
+		if (cached != null) return cached;
+		return built_packages.put(key, new JarPackager(this).packageJar(clazz, extraBlacklist));
 	}
 
 	public File packageDalvikFor(Class<?> clazz) throws Exception {
@@ -71,45 +156,146 @@ public class ClassToolbox {
 	
 	public File packageDalvikFor(Class<?> clazz, List<String> extraBlacklist) throws Exception {
 		if (package_cache.containsKey(clazz)) return package_cache.get(clazz);
+		String key = PackageCache.keyFor("dalvik", clazz, blacklist(), extraBlacklist);
+		File cached = built_packages.fileFor(key);
+		if (cached != null) return cached;
+		// the dx tool only works with files, they're gone once the dex is cached
 		File dir = platform.createTempDir();
-		File jar = new JarPackager(this).packageJar(clazz, dir,extraBlacklist);
-		String ANDROID_HOME = System.getenv("ANDROID_HOME");
-		return convertToDalvik(dir, jar, ANDROID_HOME);
+		try {
+			File jar = new File(dir, "agent.jar");
+			String jarKey = PackageCache.keyFor("jar", clazz, blacklist(), extraBlacklist);
+			writeOnFile(new ByteArrayInputStream(jarFor(jarKey, clazz, extraBlacklist)), jar);
+			String ANDROID_HOME = System.getenv("ANDROID_HOME");
+			built_packages.put(key, readFile(convertToDalvik(dir, jar, ANDROID_HOME)));
+		} finally {
+			deleteAll(dir);
+		}
+		return built_packages.fileFor(key);
+	}
+	
+	private static void deleteAll(File file) {
+		File[] children = file.listFiles();
+		if (children != null){
+			for (File child : children) deleteAll(child);
+		}
+		if (!file.delete() && file.exists()){
+			logger.fine("Not possible to delete "+file);
+		}
+	}
+	
+	/** @return The content of the Dalvik package of the class.*/
+	public byte[] packageDalvikBytesFor(Class<?> clazz, List<String> extraBlacklist) 
+			throws Exception {
+		if (package_cache.containsKey(clazz)) return readFile(package_cache.get(clazz));
+		packageDalvikFor(clazz, extraBlacklist);
+		return built_packages.get(
+				PackageCache.keyFor("dalvik", clazz, blacklist(), extraBlacklist));
+	}
+	
+	private static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return MemoryClassLoader.readAll(in);
+		} finally {
+			in.close();
+		}
 	}
 	
 	public ClassLoader load(String className, InputStream clazz) throws Exception {
-		File classDir = createClassFileDir(className, clazz);
-		return platform.createClassLoader(classDir);
+		return platform.load(className, clazz);
 	}
 
 	public ClassLoader load(InputStream jar) throws Exception{
-		File tempJar = File.createTempFile("uExeTmp.jar", ""+System.nanoTime());
-		writeOnFile(jar, tempJar);
-		return platform.createClassLoader(tempJar);
+		return platform.load(jar);
+	}
+	
+	/** @return The hash that identifies the content of a package. */
+	public String hashOf(byte[] pkg) {
+		return PackageCache.hashOf(pkg);
+	}
+	
+	PackageCache builtPackages() {
+		return built_packages;
+	}
+	
+	/** @return The loader of a package already received, null if there's none.*/
+	public ClassLoader loaderFor(String hash) {
+		return received_packages.get(hash);
+	}
+	
+	/**
+	 * Loads a whole jar, when the platform allows the loader is returned 
+	 * while the jar is still being received. Once it's all received, the 
+	 * loader is kept for the informed hash (if any) when the content
+	 * matches it. A jar not received within the reception timeout is 
+	 * aborted, its missing classes are then never found.
+	 */
+	public ClassLoader loadPackage(InputStream jar, final String hash) throws Exception{
+		final DigestInputStream digested = new DigestInputStream(jar, PackageCache.sha256());
+		return platform.load(digested, receptionTimeout, new Platform.Reception() {
+			public void received(ClassLoader loader) throws IOException {
+				if (hash == null) return;
+				// a jar reader may stop before the end of the stream
+				byte[] rest = new byte[COPY_BUFFER_SIZE];
+				while (digested.read(rest) != -1) {}
+				if (hash.equals(PackageCache.hex(digested.getMessageDigest().digest()))){
+					received_packages.put(hash, loader);
+				}else{
+					logger.warning("Received package doesn't match the hash "+hash+".");
+				}
+			}
+		});
 	}
 	
-	private File createClassFileDir(String className, InputStream clazz)throws Exception {
-		File tempDir = platform.createTempDir();
-		writeClassFileOnPath(className, clazz, tempDir);
-		return tempDir;
+	/** @param size How many loaders of received packages are kept. */
+	public void setLoaderCacheSize(int size) {
+		if (size != received_packages.size()){
+			received_packages = new LoaderCache(size);
+		}
 	}
 	
-	protected void writeClassFileOnPath(String className, InputStream clazzByteCode,
-			File path) throws IOException, FileNotFoundException {
-		File classFile = new File(path.getPath()+"/"+className.replace('.', '/')+".class");
-		classFile.getParentFile().mkdirs();
-		classFile.createNewFile();
-		writeOnFile(clazzByteCode, classFile);
+	public int loaderCacheSize() {
+		return received_packages.size();
 	}
 	
-	private void writeOnFile(InputStream clazzByteCode, File classFile)
+	/** 
+	 * @param timeout How long, in milliseconds, a package can take to arrive,
+	 * 0 waits forever.
+	 */
+	public void setReceptionTimeout(long timeout) {
+		receptionTimeout = timeout;
+	}
+	
+	public long receptionTimeout() {
+		return receptionTimeout;
+	}
+	
+	private static void writeOnFile(InputStream clazzByteCode, File classFile)
 			throws FileNotFoundException, IOException {
 		FileOutputStream writer = new FileOutputStream(classFile);
-		int b = 0;
-		while((b = clazzByteCode.read()) != -1) {
-			writer.write(b);
+		try {
+			if (clazzByteCode instanceof FileInputStream){
+				// file to file is handed to the OS
+				FileChannel source = ((FileInputStream) clazzByteCode).getChannel();
+				FileChannel target = writer.getChannel();
+				long position = 0;
+				long remaining = source.size() - source.position();
+				while (remaining > 0) {
+					long copied = target.transferFrom(source, position, remaining);
+					if (copied <= 0) break;
+					position += copied;
+					remaining -= copied;
+				}
+			}else{
+				byte[] buffer = new byte[COPY_BUFFER_SIZE];
+				int read;
+				while ((read = clazzByteCode.read(buffer)) != -1) {
+					writer.write(buffer, 0, read);
+				}
+			}
+		} finally {
+			writer.close();
 		}
-		writer.close();
 	}
 	
 	protected File convertToDalvik(File dir, File jar, String ANDROID_HOME)
@@ -171,10 +357,47 @@ public class ClassToolbox {
 		return finder.knownClasses();
 	}
 	
+	/** @return Which of the candidate classes are present on this classpath. */
+	public List<String> listKnownClasses(Collection<String> candidates) {
+		return finder.knownClasses(candidates);
+	}
+	
+	/** 
+	 * @return A token that changes whenever the known classes change, so 
+	 * other devices know when what they learnt about this one is outdated. 
+	 */
+	public String epoch() {
+		return finder.epoch();
+	}
+	
+	/** 
+	 * @return The direct dependencies already known for the current epoch, 
+	 * shared by every packaging done by this toolbox.
+	 */
+	DependencyGraph dependencyGraph() {
+		String epoch = epoch();
+		DependencyGraph graph = dependencies;
+		if (!epoch.equals(graph.epoch())){
+			graph = new DependencyGraph(epoch);
+			dependencies = graph;
+		}
+		return graph;
+	}
+	
+	/** 
+	 * @return The name of all classes that would be packaged with this one
+	 * if no class was known by the target. 
+	 */
+	public List<String> dependenciesOf(Class<?> clazz) throws Exception {
+		return new JarPackager(this).dependenciesOf(clazz);
+	}
+	
 	/**
 	 * Like in: http://lsd.luminis.nl/osgi-on-google-android-using-apache-felix/
 	 * We adjust to the configurations of Android based on reflections
 	 * 
+	 * On a JVM received code is kept only in memory. The Dalvik platform 
+	 * needs the code on disk, so it uses the default file based loading.
 	 */
 	public static Platform platform = new Platform() {
 		protected ClassLoader createClassLoader(File input) throws Exception {
@@ -187,6 +410,38 @@ public class ClassToolbox {
 			tempDir.mkdir();  // and transform it to a directory
 			return tempDir;
 		}
+		protected ClassLoader load(String className, InputStream clazz) throws Exception {
+			return MemoryClassLoader.fromClass(className, clazz, 
+										ClassLoader.getSystemClassLoader());
+		}
+		protected ClassLoader load(InputStream jar) throws Exception {
+			return MemoryClassLoader.fromJar(jar, ClassLoader.getSystemClassLoader());
+		}
+		protected ClassLoader load(final InputStream jar, long timeout, 
+				final Reception reception) throws Exception {
+			final MemoryClassLoader loader = 
+					MemoryClassLoader.receiving(ClassLoader.getSystemClassLoader());
+			final Future<?> deadline = timeout <= 0 ? null : deadlines.schedule(
+				new Runnable() {
+					public void run() {
+						logger.warning("Package was not received in time, reception aborted.");
+						loader.abort(jar);
+					}
+				}, timeout, TimeUnit.MILLISECONDS);
+			transfers.execute(new Runnable() {
+				public void run() {
+					try {
+						loader.receive(jar);
+						reception.received(loader);
+					} catch (IOException e) {
+						logger.log(Level.WARNING, "Package was not completely received.", e);
+					} finally {
+						if (deadline != null) deadline.cancel(false);
+					}
+				}
+			});
+			return loader;
+		}
 	}; 
 	
 	static {
@@ -217,8 +472,41 @@ public class ClassToolbox {
 	}
 	
 	public abstract static class Platform{
+		/** Told when a package being loaded was completely received. */
+		public interface Reception {
+			void received(ClassLoader loader) throws IOException;
+		}
+		
 		protected abstract ClassLoader createClassLoader(File input) throws Exception;
 		protected abstract File createTempDir() throws Exception;
+		
+		/** Loads a single class. By default it's written in a temp dir. */
+		protected ClassLoader load(String className, InputStream clazz) throws Exception {
+			File classDir = createTempDir();
+			File classFile = new File(classDir.getPath()+"/"+className.replace('.', '/')+".class");
+			classFile.getParentFile().mkdirs();
+			writeOnFile(clazz, classFile);
+			return createClassLoader(classDir);
+		}
+		
+		/** Loads a whole jar. By default it's written in a temp file. */
+		protected ClassLoader load(InputStream jar) throws Exception {
+			File tempJar = File.createTempFile("uExeTmp.jar", ""+System.nanoTime());
+			writeOnFile(jar, tempJar);
+			return createClassLoader(tempJar);
+		}
+		
+		/** 
+		 * Loads a whole jar, telling the reception once it's all read. By 
+		 * default the jar is read before the loader is returned, so the 
+		 * timeout is left to whoever is reading it.
+		 */
+		protected ClassLoader load(InputStream jar, long timeout, Reception reception) 
+				throws Exception {
+			ClassLoader loader = load(jar);
+			reception.received(loader);
+			return loader;
+		}
 	}
 	
 }
@@ -0,0 +1,377 @@
+package org.unbiquitous.driver.execution.executeAgent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Knows which classes are present on each classpath entry (jar or directory)
+ * and keeps this knowledge on disk, so a restarted node only rescans the
+ * entries that changed since last time.
+ *
+ * A jar is considered unchanged while its size and modification time are
+ * the same. A directory is considered unchanged while it and all its
+ * subdirectories keep their modification times (adding, removing or
+ * renaming a file changes the modification time of its directory).
+ *
+ * The index file is defined by the system property
+ * "ubiquitos.execution.classIndex", by default (or "none") the index is only
+ * kept in memory. The file is read on the first scan, which happens on the
+ * indexing thread, never by the constructor.
+ *
+ * @author Fabricio Nogueira Buzeto
+ *
+ */
+class ClasspathCache {
+	private static final Logger logger = Logger.getLogger(ClasspathCache.class.getName());
+
+	public static final String FILE_PROPERTY = "ubiquitos.execution.classIndex";
+	private static final int VERSION = 1;
+
+	private final File file;
+	private final ConcurrentMap<String, Entry> entries = 
+											new ConcurrentHashMap<String, Entry>();
+	private volatile boolean dirty = false;
+	private volatile boolean released = false;
+	private boolean loaded = false;
+
+	static class Entry {
+		String path;
+		boolean directory;
+		long length;
+		long modified;
+		/** Modification time of every directory, by its relative path. */
+		Map<String, Long> directories = new LinkedHashMap<String, Long>();
+		List<String> classes = new ArrayList<String>();
+
+		boolean isUpToDate() {
+			File root = new File(path);
+			if (directory){
+				if (!root.isDirectory()) return false;
+				for (Map.Entry<String, Long> dir : directories.entrySet()){
+					if (new File(root, dir.getKey()).lastModified() != dir.getValue()){
+						return false;
+					}
+				}
+				return true;
+			}
+			return root.isFile() &&
+					root.length() == length && root.lastModified() == modified;
+		}
+	}
+
+	/** @param file where to persist the index, or null to keep it in memory. */
+	ClasspathCache(File file) {
+		this.file = file;
+	}
+
+	static ClasspathCache fromSystem() {
+		String location = System.getProperty(FILE_PROPERTY);
+		if (location == null || "none".equalsIgnoreCase(location.trim())){
+			return new ClasspathCache(null);
+		}
+		return new ClasspathCache(new File(location.trim()));
+	}
+
+	/** @return Where the index is persisted, null if it's only in memory. */
+	File file() {
+		return file;
+	}
+
+	/**
+	 * @return The name of all classes on this jar or directory, scanning it
+	 * only if it changed since last time.
+	 */
+	List<String> classesOf(File path) throws IOException {
+		return scan(path, null).classes();
+	}
+
+	/**
+	 * Starts finding the classes of this jar or directory. When a pool is
+	 * informed the scan (and each subdirectory of a directory) runs on it,
+	 * otherwise it runs on the caller thread.
+	 */
+	Scan scan(final File path, Executor pool) {
+		load();
+		final Entry cached = entries.get(path.getPath());
+		if (cached != null && cached.isUpToDate()) {
+			return new Scan() {
+				public List<String> classes() { return cached.classes; }
+			};
+		}
+		if (path.isDirectory()) return new DirectoryScan(path, pool);
+		return new JarScan(path, pool);
+	}
+
+	/** Result of a scan that may still be running. */
+	interface Scan {
+		/** Blocks until the scan is finished. */
+		List<String> classes() throws IOException;
+	}
+
+	private class JarScan implements Scan {
+		private final FutureTask<Entry> task;
+
+		JarScan(final File jar, Executor pool) {
+			task = new FutureTask<Entry>(new Callable<Entry>() {
+				public Entry call() throws Exception {
+					Entry entry = new Entry();
+					entry.path = jar.getPath();
+					entry.length = jar.length();
+					entry.modified = jar.lastModified();
+					scanJar(entry, jar);
+					return store(entry);
+				}
+			});
+			if (pool == null){
+				task.run();
+			}else{
+				pool.execute(task);
+			}
+		}
+
+		public List<String> classes() throws IOException {
+			try {
+				return task.get().classes;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while scanning a jar.");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Every subdirectory is listed as a separated task, the walk is over 
+	 * when no directory is pending. Since the order the directories are 
+	 * visited is not defined, the result is sorted.
+	 */
+	private class DirectoryScan implements Scan {
+		private final File root;
+		private final Executor pool;
+		private final ConcurrentMap<String, Long> directories = 
+											new ConcurrentHashMap<String, Long>();
+		private final Queue<String> classes = new ConcurrentLinkedQueue<String>();
+		private final AtomicInteger pending = new AtomicInteger(1);
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private volatile RuntimeException failure;
+		private Entry entry;
+
+		DirectoryScan(File root, Executor pool) {
+			this.root = root;
+			this.pool = pool;
+			visit(root, "");
+		}
+
+		private void visit(final File dir, final String relative) {
+			if (pool == null){
+				walk(dir, relative);
+				return;
+			}
+			try {
+				pool.execute(new Runnable() {
+					public void run() { walk(dir, relative); }
+				});
+			} catch (RuntimeException e) {
+				failure = e;
+				done();
+			}
+		}
+
+		private void walk(File dir, String relative) {
+			try {
+				directories.put(relative, dir.lastModified());
+				File[] children = dir.listFiles();
+				if (children == null) return;
+				for (File child : children) {
+					String name = relative.length() == 0 ?
+									child.getName() : relative + "/" + child.getName();
+					if (child.isDirectory()){
+						pending.incrementAndGet();
+						visit(child, name);
+					}else if (name.endsWith(".class")){
+						classes.add(className(name));
+					}
+				}
+			} catch (RuntimeException e) {
+				failure = e;
+			} finally {
+				done();
+			}
+		}
+
+		private void done() {
+			if (pending.decrementAndGet() == 0) finished.countDown();
+		}
+
+		public synchronized List<String> classes() throws IOException {
+			if (entry != null) return entry.classes;
+			try {
+				finished.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while scanning "+root);
+			}
+			if (failure != null) throw failure;
+			Entry scanned = new Entry();
+			scanned.path = root.getPath();
+			scanned.directory = true;
+			scanned.directories.putAll(new TreeMap<String, Long>(directories));
+			scanned.classes.addAll(classes);
+			Collections.sort(scanned.classes);
+			entry = store(scanned);
+			return entry.classes;
+		}
+	}
+
+	private Entry store(Entry entry) {
+		if (released) return entry;
+		entries.put(entry.path, entry);
+		dirty = true;
+		return entry;
+	}
+
+	/** Only the central directory is read, entries are never inflated. */
+	private void scanJar(Entry entry, File jar) throws IOException {
+		ZipFile zip = new ZipFile(jar);
+		try {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				String name = entries.nextElement().getName();
+				if (name.endsWith(".class")) {
+					entry.classes.add(className(name));
+				}
+			}
+		} finally {
+			zip.close();
+		}
+	}
+
+	private static String className(String path) {
+		return path.substring(0, path.length() - ".class".length()).replace('/', '.');
+	}
+
+	/** Writes the index to disk if anything changed since it was loaded. */
+	synchronized void save() {
+		if (file == null || !dirty || released) return;
+		try {
+			file.getAbsoluteFile().getParentFile().mkdirs();
+			File temp = new File(file.getPath() + "." + System.nanoTime() + ".tmp");
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				write(out);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)){
+				file.delete();
+				if (!temp.renameTo(file)) temp.delete();
+			}
+			dirty = false;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Not possible to save class index on "+file, e);
+		}
+	}
+
+	/**
+	 * Forgets the classes kept in memory once they were indexed elsewhere,
+	 * entries scanned after this are neither kept nor saved anymore.
+	 */
+	synchronized void release() {
+		released = true;
+		entries.clear();
+	}
+
+	private void write(DataOutputStream out) throws IOException {
+		List<Entry> existing = new ArrayList<Entry>();
+		for (Entry entry : entries.values()){
+			if (new File(entry.path).exists()) existing.add(entry);
+		}
+		out.writeInt(VERSION);
+		out.writeInt(existing.size());
+		for (Entry entry : existing){
+			out.writeUTF(entry.path);
+			out.writeBoolean(entry.directory);
+			out.writeLong(entry.length);
+			out.writeLong(entry.modified);
+			out.writeInt(entry.directories.size());
+			for (Map.Entry<String, Long> dir : entry.directories.entrySet()){
+				out.writeUTF(dir.getKey());
+				out.writeLong(dir.getValue());
+			}
+			out.writeInt(entry.classes.size());
+			for (String clazz : entry.classes){
+				out.writeUTF(clazz);
+			}
+		}
+	}
+
+	private synchronized void load() {
+		if (loaded || released) return;
+		loaded = true;
+		if (file == null || !file.isFile()) return;
+		try {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)));
+			try {
+				read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Ignoring unreadable class index on "+file, e);
+			entries.clear();
+		}
+	}
+
+	private void read(DataInputStream in) throws IOException {
+		if (in.readInt() != VERSION) return;
+		int count = in.readInt();
+		for (int i = 0; i < count; i++){
+			Entry entry = new Entry();
+			entry.path = in.readUTF();
+			entry.directory = in.readBoolean();
+			entry.length = in.readLong();
+			entry.modified = in.readLong();
+			int dirs = in.readInt();
+			for (int d = 0; d < dirs; d++){
+				entry.directories.put(in.readUTF(), in.readLong());
+			}
+			int classes = in.readInt();
+			for (int c = 0; c < classes; c++){
+				entry.classes.add(in.readUTF());
+			}
+			entries.put(entry.path, entry);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package org.unbiquitous.driver.execution.executeAgent;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the classes directly referenced by each class already analyzed, so
+ * packaging an agent that shares libraries with earlier ones only parses 
+ * the classes that are new. 
+ * 
+ * What a class references only changes if the class itself changes, so the
+ * graph is valid for a single epoch of the class index.
+ *
+ * @author Fabricio Nogueira Buzeto
+ *
+ */
+class DependencyGraph {
+	private final String epoch;
+	private final ConcurrentMap<String, String[]> direct = 
+								new ConcurrentHashMap<String, String[]>();
+
+	DependencyGraph(String epoch) {
+		this.epoch = epoch;
+	}
+
+	String epoch() {
+		return epoch;
+	}
+
+	/** @return The classes referenced by this one, null if not analyzed yet. */
+	String[] get(String className) {
+		return direct.get(className);
+	}
+
+	/** @return The references kept, the first ones if another thread won. */
+	String[] put(String className, Collection<String> dependencies) {
+		String[] references = dependencies.toArray(new String[dependencies.size()]);
+		String[] previous = direct.putIfAbsent(className, references);
+		return previous != null ? previous : references;
+	}
+
+	int size() {
+		return direct.size();
+	}
+}
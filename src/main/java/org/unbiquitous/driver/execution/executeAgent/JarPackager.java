@@ -1,181 +1,296 @@
 package org.unbiquitous.driver.execution.executeAgent;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import org.apache.bcel.Repository;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantClass;
+import org.apache.bcel.classfile.ConstantNameAndType;
+import org.apache.bcel.classfile.ConstantPool;
+import org.apache.bcel.classfile.Field;
 import org.apache.bcel.classfile.JavaClass;
 import org.apache.bcel.classfile.LocalVariable;
 import org.apache.bcel.classfile.Method;
-import org.apache.bcel.generic.ArrayType;
-import org.apache.bcel.generic.BasicType;
-import org.apache.bcel.generic.Type;
 
 /*
  * I could use http://code.google.com/p/java-dependency-resolver/
  * but using BCEL i was able to bypass the limitations of reflections regarding
- * non-public methods and its inner properties
+ * non-public methods and its inner properties.
+ * 
+ * Dependencies are read from the class files themselves (constant pool and 
+ * member descriptors), so no class is loaded nor initialized while packaging
+ * and types used only inside method bodies are also found.
  */
 class JarPackager {
 	
+	private static final long ENTRY_TIME = 0;
+	private static final String[] NONE = new String[0];
+	
+	/** How many threads walk the dependencies of an agent, 1 makes it serial. */
+	public static final String PACKAGING_THREADS_PROPERTY = "ubiquitos.execution.packagingThreads";
+	
+	/** Threads shared by every packaging, null when packaging is serial. */
+	private static final ExecutorService walkers = newWalkers(packagingThreads());
+	
 	ClassToolbox toolbox;
-	Set<Class<?>> processedClasses = new HashSet<Class<?>>();
+	Set<String> processedClasses = Collections.newSetFromMap(
+										new ConcurrentHashMap<String, Boolean>());
+	private Set<String> visited = Collections.newSetFromMap(
+										new ConcurrentHashMap<String, Boolean>());
+	private final ExecutorService pool;
 	
 	public JarPackager(ClassToolbox toolbox) {
+		this(toolbox, walkers);
+	}
+	
+	/** @param pool Where classes are read and parsed, null walks on the caller. */
+	JarPackager(ClassToolbox toolbox, ExecutorService pool) {
 		this.toolbox = toolbox;
+		this.pool = pool;
 	}
 
-	File packageJar(Class<?> clazz, File path, List<String> extraBlacklist) throws Exception{
-		packageClass(clazz, path, extraBlacklist);
+	/** 
+	 * The class and its dependencies are zipped straight from where they
+	 * were found, nothing is written to disk. Entries are zipped sorted by 
+	 * name, so the jar is the same whatever order the walk found them.
+	 */
+	byte[] packageJar(Class<?> clazz, List<String> extraBlacklist) throws Exception{
+		Map<String, byte[]> found = new ConcurrentHashMap<String, byte[]>();
+		packageClass(clazz.getName(), found, extraBlacklist);
+		SortedMap<String, byte[]> entries = new TreeMap<String, byte[]>(found);
 		
-		File jar =  File.createTempFile("uExe", System.nanoTime()+".jar");
-		final ZipOutputStream zos = new ZipOutputStream( new FileOutputStream( jar ) );
-		zip(path, path, zos);
+		ByteArrayOutputStream jar = new ByteArrayOutputStream();
+		final ZipOutputStream zos = new ZipOutputStream(jar);
+		zip(entries, zos);
 		zos.close();
-		return jar;
+		return jar.toByteArray();
 	}
 	
-	protected void packageClass(Class<?> clazz, File path, 
-								List<String> extraBlacklist) throws IOException,
-			FileNotFoundException, ClassNotFoundException {
-		if (!processedClasses.contains(clazz)) {
-			final InputStream bytecode = toolbox.findClass(clazz, extraBlacklist);
-			if (bytecode == null) return; //cut not found classes
-			processedClasses.add(clazz);
-			toolbox.writeClassFileOnPath(clazz.getName(), bytecode, path);
-
-			packageFields(clazz, path, extraBlacklist);
-			packageSuperclass(clazz, path, extraBlacklist);
-			packageInnerClasses(clazz, path, extraBlacklist);
-			packageInterfaces(clazz, path, extraBlacklist);
-			packageMethods(clazz, path, extraBlacklist);
-		}
+	/** Walks the same classes packageJar would, but writes nothing. */
+	List<String> dependenciesOf(Class<?> clazz) throws Exception{
+		packageClass(clazz.getName(), null, null);
+		List<String> dependencies = new ArrayList<String>(processedClasses);
+		Collections.sort(dependencies);
+		return dependencies;
 	}
-
-	private void packageMethods(Class<?> clazz, File path, 
-								List<String> extraBlacklist)
-			throws ClassNotFoundException, IOException, FileNotFoundException {
-		final JavaClass rClazz = Repository.lookupClass(clazz);
-		for (Method method : rClazz.getMethods()) {
-			packageMethodArguments(path, method, extraBlacklist);
-			packageMethodLocalVariables(path, method, extraBlacklist);
-			packageMethodExceptions(path, method, extraBlacklist);
-			packageMethodReturnType(path, method, extraBlacklist);
+	
+	/** 
+	 * Packages the class and every class it references, classes not found 
+	 * (JDK or blacklisted) are cut from the walk. The references of classes
+	 * analyzed before come from the toolbox's dependency graph, so their 
+	 * bytes are read only when they must be packaged.
+	 * 
+	 * With a pool each class is read and parsed on its own task, so the path
+	 * must accept concurrent puts.
+	 */
+	protected void packageClass(String className, Map<String, byte[]> path, 
+								List<String> extraBlacklist) throws IOException {
+		DependencyGraph graph = toolbox.dependencyGraph();
+		if (pool != null) {
+			new Walk(graph, path, extraBlacklist).from(className);
+			return;
 		}
-	}
-
-	private void packageMethodReturnType(File path, Method method, 
-											List<String> extraBlacklist)
-			throws IOException, FileNotFoundException, ClassNotFoundException {
-		packageBCELType(method.getReturnType(), path, extraBlacklist);
-	}
-
-	private void packageMethodArguments(File path, Method method, 
-										List<String> extraBlacklist)
-			throws IOException, FileNotFoundException, ClassNotFoundException {
-		for (Type t : method.getArgumentTypes()) {
-			packageBCELType(t, path, extraBlacklist);
+		LinkedList<String> pending = new LinkedList<String>();
+		if (visited.add(className)) pending.add(className);
+		while (!pending.isEmpty()) {
+			for (String dependency : visit(pending.removeFirst(), graph, path, extraBlacklist)){
+				if (visited.add(dependency)) pending.add(dependency);
+			}
 		}
 	}
 	
-	private void packageBCELType(Type t, File path, List<String> extraBlacklist)
-			throws IOException, FileNotFoundException, ClassNotFoundException {
-		if (!(t instanceof BasicType)) {
-			Type type = t;
-			while (type instanceof ArrayType)
-				type = ((ArrayType)type).getElementType();
-			if (!(type instanceof BasicType)) 
-				packageClass(Class.forName(type.toString()), path, extraBlacklist);
+	/** @return The classes referenced by this one, none if it isn't packaged. */
+	private String[] visit(String name, DependencyGraph graph, 
+							Map<String, byte[]> path, List<String> extraBlacklist) 
+			throws IOException {
+		String[] references = graph.get(name);
+		if (path == null && references != null){
+			if (!toolbox.locates(name, extraBlacklist)) return NONE;
+		}else{
+			final InputStream bytecode = toolbox.findClass(name, extraBlacklist);
+			if (bytecode == null) return NONE; //cut not found classes
+			byte[] content;
+			try {
+				content = MemoryClassLoader.readAll(bytecode);
+			} finally {
+				bytecode.close();
+			}
+			if (path != null){
+				path.put(name.replace('.', '/')+".class", content);
+			}
+			if (references == null){
+				references = graph.put(name, referencedBy(name, content));
+			}
 		}
+		processedClasses.add(name);
+		return references;
 	}
 	
-	private void packageMethodExceptions(	File path, Method method, 
-											List<String> extraBlacklist)
-			throws IOException, FileNotFoundException, ClassNotFoundException {
-		if (method.getExceptionTable() != null){
-			for(String e:method.getExceptionTable().getExceptionNames()){
-				packageClass(Class.forName(e), path, extraBlacklist);
+	/**
+	 * A walk where every class found is a task on the pool. Tasks never wait
+	 * on each other, the caller waits until no task is left.
+	 */
+	private class Walk {
+		private final DependencyGraph graph;
+		private final Map<String, byte[]> path;
+		private final List<String> extraBlacklist;
+		private final AtomicInteger pending = new AtomicInteger();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		
+		Walk(DependencyGraph graph, Map<String, byte[]> path, List<String> extraBlacklist) {
+			this.graph = graph;
+			this.path = path;
+			this.extraBlacklist = extraBlacklist;
+		}
+		
+		void from(String className) throws IOException {
+			pending.incrementAndGet();
+			submit(className);
+			finished();
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				failure.compareAndSet(null, e);
+				Thread.currentThread().interrupt();
 			}
+			Throwable cause = failure.get();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause != null) throw new IOException("Not possible to walk the dependencies.", cause);
 		}
-	}
-
-	private void packageMethodLocalVariables(File path, Method method, List<String> extraBlacklist)
-			throws IOException, FileNotFoundException, ClassNotFoundException {
-		if (method.getLocalVariableTable() != null){
-			for (LocalVariable v : method.getLocalVariableTable()
-												.getLocalVariableTable()){
-				// signature is in the format Lorg/unbiquitous/driver/execution/AMethodParameter;
-				String name = v.getSignature()
-						.replaceAll("\\[", "") //get array root type
-						.replace('/', '.'); // change dash for dot
-				if (name.length() > 2 ){ // get rid of primitive types
-					name = name.substring(1,name.length()-1); // remove L
-					packageClass(Class.forName(name), path, extraBlacklist);
-				}
+		
+		private void submit(final String name) {
+			if (failure.get() != null || !visited.add(name)) return;
+			pending.incrementAndGet();
+			try {
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							for (String dependency : visit(name, graph, path, extraBlacklist)){
+								submit(dependency);
+							}
+						} catch (Throwable e) {
+							failure.compareAndSet(null, e);
+						} finally {
+							finished();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				failure.compareAndSet(null, e);
+				finished();
 			}
 		}
-	}
-
-	private void packageInterfaces(Class<?> clazz, File path, List<String> extraBlacklist)
-			throws IOException, FileNotFoundException, ClassNotFoundException {
-		for (Class<?> i : clazz.getInterfaces()) {
-			packageClass(i, path, extraBlacklist);
+		
+		private void finished() {
+			if (pending.decrementAndGet() == 0) done.countDown();
 		}
 	}
-
-	private void packageInnerClasses(Class<?> clazz, File path, List<String> extraBlacklist)
-			throws IOException, FileNotFoundException, ClassNotFoundException {
-		for (Class<?> s : clazz.getDeclaredClasses()) {
-			packageClass(s, path, extraBlacklist);
-		}
+	
+	private static int packagingThreads() {
+		String threads = System.getProperty(PACKAGING_THREADS_PROPERTY);
+		if (threads != null) return Integer.parseInt(threads);
+		return Runtime.getRuntime().availableProcessors();
 	}
-
-	private void packageSuperclass(Class<?> clazz, File path, List<String> extraBlacklist)
-			throws IOException, FileNotFoundException, ClassNotFoundException {
-		if (clazz.getSuperclass() != null) 
-			packageClass(clazz.getSuperclass(), path, extraBlacklist);
+	
+	private static ExecutorService newWalkers(int threads) {
+		if (threads <= 1) return null;
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "uExe-packaging-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
 	}
-
-	private void packageFields(Class<?> clazz, File path, List<String> extraBlacklist) throws IOException,
-			FileNotFoundException, ClassNotFoundException {
-		for (java.lang.reflect.Field f : clazz.getDeclaredFields()) {
-			Class<?> type = findRootTypeFromArrays(f); 
-			packageClass(type, path, extraBlacklist);
+	
+	/**
+	 * @return The name of the classes referenced on the constant pool, on 
+	 * the descriptors of fields, methods, invoked members and local variables.
+	 */
+	static Set<String> referencedBy(String className, byte[] bytecode) throws IOException {
+		JavaClass clazz = new ClassParser(new ByteArrayInputStream(bytecode), 
+											className).parse();
+		ConstantPool pool = clazz.getConstantPool();
+		Set<String> references = new HashSet<String>();
+		for (Constant constant : pool.getConstantPool()) {
+			if (constant instanceof ConstantClass) {
+				String name = ((ConstantClass) constant).getBytes(pool);
+				if (name.startsWith("[")){
+					addDescriptor(name, references);
+				}else{
+					references.add(name.replace('/', '.'));
+				}
+			} else if (constant instanceof ConstantNameAndType) {
+				addDescriptor(((ConstantNameAndType) constant).getSignature(pool), references);
+			}
 		}
+		for (Field field : clazz.getFields()) {
+			addDescriptor(field.getSignature(), references);
+		}
+		for (Method method : clazz.getMethods()) {
+			addDescriptor(method.getSignature(), references);
+			if (method.getLocalVariableTable() != null){
+				for (LocalVariable v : method.getLocalVariableTable()
+													.getLocalVariableTable()){
+					addDescriptor(v.getSignature(), references);
+				}
+			}
+		}
+		references.remove(className);
+		return references;
 	}
 
-	private Class<?> findRootTypeFromArrays(java.lang.reflect.Field f) {
-		Class<?> type = f.getType();
-		while(type.isArray())	type = type.getComponentType();
-		return type;
+	/** 
+	 * Descriptors are in the format (I[Lorg/unbiquitous/AMethodParameter;)V
+	 * only the types starting with L are classes.
+	 */
+	private static void addDescriptor(String descriptor, Set<String> references) {
+		for (int i = 0; i < descriptor.length(); i++) {
+			if (descriptor.charAt(i) == 'L') {
+				int end = descriptor.indexOf(';', i);
+				if (end < 0) return;
+				references.add(descriptor.substring(i + 1, end).replace('/', '.'));
+				i = end;
+			}
+		}
 	}
 
-	protected void zip(File directory, File base, ZipOutputStream zos) throws IOException {
-		File[] files = directory.listFiles();
-		byte[] buffer = new byte[8192];
-		int read = 0;
-		for (int i = 0, n = files.length; i < n; i++) {
-			if (files[i].isDirectory()) {
-				zip(files[i], base, zos);
-			} else {
-				FileInputStream in = new FileInputStream(files[i]);
-				ZipEntry entry = new ZipEntry(files[i].getPath().substring(
-						base.getPath().length() + 1));
-				zos.putNextEntry(entry);
-				while (-1 != (read = in.read(buffer))) {
-					zos.write(buffer, 0, read);
-				}
-				in.close();
-			}
+	/** 
+	 * Entries are written sorted and with a fixed time, so the same classes 
+	 * always produce the same bytes.
+	 */
+	protected void zip(SortedMap<String, byte[]> entries, ZipOutputStream zos) 
+			throws IOException {
+		for (Map.Entry<String, byte[]> bytecode : entries.entrySet()) {
+			ZipEntry entry = new ZipEntry(bytecode.getKey());
+			entry.setTime(ENTRY_TIME);
+			zos.putNextEntry(entry);
+			zos.write(bytecode.getValue());
 		}
 	}
-}
\ No newline at end of file
+}
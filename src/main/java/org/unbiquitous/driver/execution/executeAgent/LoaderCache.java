@@ -0,0 +1,53 @@
+package org.unbiquitous.driver.execution.executeAgent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the ClassLoaders of the packages already received, by the hash of
+ * the package content. When the same agent type arrives again its package
+ * doesn't need to be transferred nor loaded again.
+ *
+ * At most size loaders are kept, the least recently used are dropped.
+ *
+ * @author Fabricio Nogueira Buzeto
+ *
+ */
+class LoaderCache {
+	public static final int DEFAULT_SIZE = 32;
+
+	private final int size;
+	private final Map<String, ClassLoader> loaders;
+
+	LoaderCache() {
+		this(DEFAULT_SIZE);
+	}
+
+	@SuppressWarnings("serial")
+	LoaderCache(int size) {
+		if (size < 0) throw new IllegalArgumentException("Cache size can't be negative.");
+		this.size = size;
+		this.loaders = new LinkedHashMap<String, ClassLoader>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<String, ClassLoader> eldest) {
+				return size() > LoaderCache.this.size;
+			}
+		};
+	}
+
+	/** @return The loader of the package with this hash, null if unknown. */
+	synchronized ClassLoader get(String hash) {
+		return loaders.get(hash);
+	}
+
+	synchronized void put(String hash, ClassLoader loader) {
+		loaders.put(hash, loader);
+	}
+
+	synchronized int loaders() {
+		return loaders.size();
+	}
+
+	int size() {
+		return size;
+	}
+}
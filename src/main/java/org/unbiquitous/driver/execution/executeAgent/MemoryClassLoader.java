@@ -0,0 +1,213 @@
+package org.unbiquitous.driver.execution.executeAgent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * ClassLoader that defines classes straight from bytes kept in memory, so
+ * received code never needs to touch the disk.
+ *
+ * Entries are indexed by their path inside the jar
+ * (ex: "org/unbiquitous/MyAgent.class").
+ *
+ * A loader can be used while its jar is still being received, classes are
+ * defined as soon as their entries arrive. Asking for an entry not received
+ * yet waits for it, or for the end of the jar. A reception that takes too 
+ * long can be aborted, then entries not received yet are never found.
+ *
+ * @author Fabricio Nogueira Buzeto
+ *
+ */
+class MemoryClassLoader extends ClassLoader {
+
+	private final Map<String, byte[]> entries;
+	private boolean complete;
+	private boolean aborted;
+
+	MemoryClassLoader(Map<String, byte[]> entries, ClassLoader parent) {
+		this(entries, parent, true);
+	}
+
+	private MemoryClassLoader(Map<String, byte[]> entries, ClassLoader parent,
+			boolean complete) {
+		super(parent);
+		this.entries = entries;
+		this.complete = complete;
+	}
+
+	static MemoryClassLoader fromJar(InputStream jar, ClassLoader parent)
+			throws IOException {
+		MemoryClassLoader loader = receiving(parent);
+		loader.receive(jar);
+		return loader;
+	}
+
+	/** @return A loader whose entries will be informed by {@link #receive}. */
+	static MemoryClassLoader receiving(ClassLoader parent) {
+		return new MemoryClassLoader(new HashMap<String, byte[]>(), parent, false);
+	}
+
+	/** 
+	 * Reads the entries of the jar, each one is available as soon as it's
+	 * read. The loader is complete afterwards, even if the jar is broken.
+	 */
+	void receive(InputStream jar) throws IOException {
+		try {
+			ZipInputStream zis = new ZipInputStream(jar);
+			ZipEntry entry;
+			while ((entry = zis.getNextEntry()) != null) {
+				if (!entry.isDirectory()){
+					byte[] content = readAll(zis);
+					synchronized (entries) {
+						if (aborted) break;
+						entries.put(entry.getName(), content);
+						entries.notifyAll();
+					}
+				}
+			}
+			synchronized (entries) {
+				if (aborted) throw new IOException("Reception of the jar was aborted.");
+			}
+		} finally {
+			synchronized (entries) {
+				complete = true;
+				entries.notifyAll();
+			}
+		}
+	}
+
+	/** 
+	 * Stops waiting for the rest of the jar, the stream is closed so the 
+	 * reception fails instead of blocking.
+	 */
+	void abort(InputStream jar) {
+		synchronized (entries) {
+			if (complete) return;
+			aborted = true;
+			complete = true;
+			entries.notifyAll();
+		}
+		try {
+			jar.close();
+		} catch (IOException e) {
+			// the reception already failed
+		}
+	}
+
+	/** @return The entry content, waiting for it if the jar is incomplete. */
+	private byte[] entry(String name) throws InterruptedException {
+		synchronized (entries) {
+			byte[] content = entries.get(name);
+			while (content == null && !complete){
+				entries.wait();
+				content = entries.get(name);
+			}
+			return content;
+		}
+	}
+
+	private byte[] resource(String name) {
+		try {
+			return entry(name);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	static MemoryClassLoader fromClass(String className, InputStream clazz,
+			ClassLoader parent) throws IOException {
+		Map<String, byte[]> entries = new HashMap<String, byte[]>();
+		entries.put(pathOf(className), readAll(clazz));
+		return new MemoryClassLoader(entries, parent);
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		byte[] bytecode;
+		try {
+			bytecode = entry(pathOf(name));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ClassNotFoundException(name, e);
+		}
+		if (bytecode == null) throw new ClassNotFoundException(name);
+		definePackageOf(name);
+		return defineClass(name, bytecode, 0, bytecode.length);
+	}
+
+	@SuppressWarnings("deprecation")
+	private void definePackageOf(String className) {
+		int dot = className.lastIndexOf('.');
+		if (dot < 0) return;
+		String pkg = className.substring(0, dot);
+		if (getPackage(pkg) == null){
+			try {
+				definePackage(pkg, null, null, null, null, null, null, null);
+			} catch (IllegalArgumentException e) {
+				// defined concurrently, that's fine
+			}
+		}
+	}
+
+	@Override
+	public InputStream getResourceAsStream(String name) {
+		InputStream parentResource = super.getResourceAsStream(name);
+		if (parentResource != null) return parentResource;
+		byte[] content = resource(name);
+		return content == null ? null : new ByteArrayInputStream(content);
+	}
+
+	@Override
+	protected URL findResource(final String name) {
+		final byte[] content = resource(name);
+		if (content == null) return null;
+		try {
+			return new URL("memory", null, -1, "/"+name, new URLStreamHandler() {
+				protected URLConnection openConnection(URL u) throws IOException {
+					return new URLConnection(u) {
+						public void connect() throws IOException {}
+						public InputStream getInputStream() throws IOException {
+							return new ByteArrayInputStream(content);
+						}
+					};
+				}
+			});
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	@Override
+	protected Enumeration<URL> findResources(String name) throws IOException {
+		URL resource = findResource(name);
+		if (resource == null) return Collections.enumeration(Collections.<URL>emptyList());
+		return Collections.enumeration(Collections.singletonList(resource));
+	}
+
+	private static String pathOf(String className) {
+		return className.replace('.', '/') + ".class";
+	}
+
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,100 @@
+package org.unbiquitous.driver.execution.executeAgent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipFile;
+
+/**
+ * Keeps the jars class files are read from opened, so later lookups don't 
+ * have to parse their central directory again.
+ *
+ * At most size jars are kept open, the least recently used are closed as
+ * soon as nobody is reading from them.
+ *
+ * @author Fabricio Nogueira Buzeto
+ *
+ */
+class OpenJars {
+	private static final Logger logger = Logger.getLogger(OpenJars.class.getName());
+	
+	public static final int DEFAULT_SIZE = 32;
+
+	private final int size;
+	private final Map<File, Jar> open = new LinkedHashMap<File, Jar>(16, 0.75f, true);
+
+	/** An opened jar, must be released once read. */
+	static class Jar {
+		final ZipFile zip;
+		private int readers;
+		private boolean evicted;
+		
+		private Jar(ZipFile zip) {
+			this.zip = zip;
+		}
+	}
+	
+	OpenJars() {
+		this(DEFAULT_SIZE);
+	}
+
+	OpenJars(int size) {
+		if (size < 1) throw new IllegalArgumentException("At least one jar must be kept open.");
+		this.size = size;
+	}
+
+	synchronized Jar acquire(File file) throws IOException {
+		Jar jar = open.get(file);
+		if (jar == null){
+			jar = new Jar(new ZipFile(file));
+			open.put(file, jar);
+			evict();
+		}
+		jar.readers++;
+		return jar;
+	}
+
+	void release(Jar jar) {
+		boolean unused;
+		synchronized (this) {
+			jar.readers--;
+			unused = jar.evicted && jar.readers == 0;
+		}
+		if (unused) close(jar);
+	}
+
+	private void evict() {
+		Iterator<Jar> jars = open.values().iterator();
+		while (open.size() > size && jars.hasNext()){
+			Jar eldest = jars.next();
+			jars.remove();
+			eldest.evicted = true;
+			if (eldest.readers == 0) close(eldest);
+		}
+	}
+
+	/** Closes every jar nobody is reading, the others once released. */
+	synchronized void close() {
+		for (Jar jar : open.values()){
+			jar.evicted = true;
+			if (jar.readers == 0) close(jar);
+		}
+		open.clear();
+	}
+
+	synchronized int opened() {
+		return open.size();
+	}
+
+	private static void close(Jar jar) {
+		try {
+			jar.zip.close();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Problems closing "+jar.zip.getName(), e);
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package org.unbiquitous.driver.execution.executeAgent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the packages already built, so moving the same agent type again
+ * doesn't walk its dependencies nor zip them again.
+ *
+ * Packages are found by a key made of the agent class and everything that
+ * changes what goes into the package (the blacklists). The packages
+ * themselves are kept in memory by the hash of their content, so equal 
+ * packages built for different keys are kept only once. A package is only
+ * written to disk when a caller asks for it as a file. When the packages 
+ * exceed the size limit the least recently used are evicted (and their 
+ * files deleted).
+ *
+ * @author Fabricio Nogueira Buzeto
+ *
+ */
+class PackageCache {
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+	private final long maxBytes;
+	private long totalBytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private final Map<String, String> keyToHash = new HashMap<String, String>();
+	private final LinkedHashMap<String, Stored> packages =
+									new LinkedHashMap<String, Stored>(16, 0.75f, true);
+
+	private static class Stored {
+		final byte[] content;
+		File file;
+
+		Stored(byte[] content) {
+			this.content = content;
+		}
+	}
+
+	PackageCache() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	PackageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return A key for a package of the class, considering the blacklists
+	 * in any order.
+	 */
+	static String keyFor(String kind, Class<?> clazz, Collection<String> blacklist,
+							Collection<String> extraBlacklist) {
+		MessageDigest digest = sha256();
+		update(digest, kind);
+		update(digest, clazz.getName());
+		update(digest, sorted(blacklist));
+		update(digest, "|");
+		update(digest, sorted(extraBlacklist));
+		return hex(digest.digest());
+	}
+
+	/** @return The cached package or null if there is none. */
+	synchronized byte[] get(String key) {
+		Stored stored = stored(key);
+		if (stored == null){
+			misses++;
+			return null;
+		}
+		hits++;
+		return stored.content;
+	}
+
+	/**
+	 * The cached package as a file, it's written the first time it's asked.
+	 * 
+	 * @return The file or null if there is no package for the key.
+	 */
+	synchronized File fileFor(String key) throws IOException {
+		Stored stored = stored(key);
+		if (stored == null) return null;
+		if (stored.file == null || !stored.file.exists()){
+			File file = File.createTempFile("uExe", System.nanoTime()+".jar");
+			FileOutputStream writer = new FileOutputStream(file);
+			try {
+				writer.write(stored.content);
+			} finally {
+				writer.close();
+			}
+			stored.file = file;
+		}
+		return stored.file;
+	}
+
+	/**
+	 * Stores the package built for the key. If a package with the same
+	 * content is already stored, it's used instead.
+	 *
+	 * @return The package to use from now on.
+	 */
+	synchronized byte[] put(String key, byte[] pkg) {
+		return store(key, pkg).content;
+	}
+
+	synchronized int size() {
+		return packages.size();
+	}
+
+	synchronized long bytes() {
+		return totalBytes;
+	}
+
+	synchronized long hits() {
+		return hits;
+	}
+
+	synchronized long misses() {
+		return misses;
+	}
+
+	private Stored store(String key, byte[] pkg) {
+		String hash = hashOf(pkg);
+		Stored stored = packages.get(hash);
+		if (stored == null){
+			stored = new Stored(pkg);
+			packages.put(hash, stored);
+			totalBytes += pkg.length;
+		}
+		keyToHash.put(key, hash);
+		evict(hash);
+		return stored;
+	}
+
+	private Stored stored(String key) {
+		String hash = keyToHash.get(key);
+		if (hash == null) return null;
+		Stored stored = packages.get(hash);
+		if (stored == null) keyToHash.remove(key);
+		return stored;
+	}
+
+	/** Evicts the least recently used packages, but never the newest one. */
+	private void evict(String newest) {
+		Iterator<Map.Entry<String, Stored>> it = packages.entrySet().iterator();
+		while (totalBytes > maxBytes && it.hasNext()){
+			Map.Entry<String, Stored> eldest = it.next();
+			if (eldest.getKey().equals(newest)) continue;
+			it.remove();
+			totalBytes -= eldest.getValue().content.length;
+			if (eldest.getValue().file != null) eldest.getValue().file.delete();
+			keyToHash.values().removeAll(Collections.singleton(eldest.getKey()));
+		}
+	}
+
+	static String hashOf(byte[] pkg) {
+		return hex(sha256().digest(pkg));
+	}
+
+	private static List<String> sorted(Collection<String> names) {
+		if (names == null) return Collections.emptyList();
+		List<String> sorted = new ArrayList<String>(names);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+	private static void update(MessageDigest digest, List<String> names) {
+		for (String name : names){
+			update(digest, name);
+		}
+	}
+
+	private static void update(MessageDigest digest, String text) {
+		try {
+			digest.update(text.getBytes("UTF-8"));
+			digest.update((byte) 0);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes){
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16))
+				.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+}
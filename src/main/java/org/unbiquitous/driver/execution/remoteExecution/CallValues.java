@@ -1,35 +1,102 @@
 package org.unbiquitous.driver.execution.remoteExecution;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Holds the values exchanged between a remote execution call and its script.
+ *
+ * Each call works on its own {@link Scope}, created by {@link #open()}
+ * and released by {@link #release(Scope)} when the call finishes, so no
+ * values are kept after the execution. Scope ids are only needed by scripts
+ * using the <code>Uos</code> library, and are never repeated. Values are 
+ * only set by id on scopes already open, so no scope outlives its call.
+ */
 public class CallValues {
 
-	private HashMap<Long, HashMap<String, String>> values = new HashMap<Long, HashMap<String,String>>();
-	
-	public void setValue(long id, String key, String value) {
-		if (values.get(id) == null){
-			values.put(id, new HashMap<String, String>());
+	private ConcurrentMap<Long, Scope> values = new ConcurrentHashMap<Long, Scope>();
+	private final AtomicLong ids = new AtomicLong();
+
+	public static class Scope {
+		private final long id;
+		private final ConcurrentMap<String, String> values = new ConcurrentHashMap<String, String>();
+		private volatile boolean bound;
+
+		Scope(long id) {	this.id = id;	}
+
+		public long id() {	return id;	}
+		
+		/** @return If the scope belongs to a script environment. */
+		boolean bound() {	return bound;	}
+		
+		void bind() {	bound = true;	}
+
+		public void setValue(String key, String value) {
+			if (value == null){
+				values.remove(key);
+			}else{
+				values.put(key, value);
+			}
+		}
+
+		public String getValue(String key) {
+			return values.get(key);
+		}
+
+		public List<String> getKeys() {
+			return new ArrayList<String>(values.keySet());
+		}
+	}
+
+	public Scope open() {
+		return open(ids.incrementAndGet());
+	}
+
+	public Scope open(long id) {
+		Scope scope = new Scope(id);
+		values.put(id, scope);
+		return scope;
+	}
+
+	public void release(Scope scope) {
+		values.remove(scope.id(), scope);
+	}
+
+	/** @return false if there's no open scope with this id. */
+	public boolean setValue(long id, String key, String value) {
+		Scope scope = values.get(id);
+		if (scope == null){
+			return false;
 		}
-		values.get(id).put(key, value);
+		scope.setValue(key, value);
+		return true;
+	}
+	
+	Scope scope(long id) {
+		return values.get(id);
 	}
 
 	public String getValue(long id, String key) {
-		if (values.get(id) == null){
+		Scope scope = values.get(id);
+		if (scope == null){
 			return null;
 		}
-		return values.get(id).
-		get(key);
+		return scope.getValue(key);
 	}
 
 	public List<String> getKeys(long id) {
-		if (values.get(id) == null){
+		Scope scope = values.get(id);
+		if (scope == null){
 			return null;
 		}
-		ArrayList<String> keys = new ArrayList<String>();
-		keys.addAll(values.get(id).keySet());
-		return keys;
+		return scope.getKeys();
+	}
+
+	public int size() {
+		return values.size();
 	}
 
 	public void clearValues() {
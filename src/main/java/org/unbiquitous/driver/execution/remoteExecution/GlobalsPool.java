@@ -0,0 +1,177 @@
+package org.unbiquitous.driver.execution.remoteExecution;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * Keeps a bounded set of pre-initialized Lua {@link Globals} so remote
+ * executions don't need to build the whole standard library on every call.
+ *
+ * Instances are taken using {@link #borrow()} and must be given back through
+ * {@link #release(Globals)}. When no idle instance is available a new one is
+ * created, so callers never wait. Such extra instances are plain standard
+ * globals, never reset nor kept, so only <code>size</code> instances are 
+ * pooled.
+ *
+ * Before a pooled instance goes back to the pool it is reset according to 
+ * its {@link ResetPolicy}.
+ *
+ * @author Fabricio Nogueira Buzeto
+ *
+ */
+public class GlobalsPool {
+
+	public static final int DEFAULT_SIZE = 4;
+
+	public enum ResetPolicy {
+		/**
+		 * Restores every table reachable from the global table, content and
+		 * metatable, to the state it had right after initialization.
+		 */
+		RESTORE,
+		/** 
+		 * Throws the used instance away and pools a brand new one, built
+		 * outside the caller's thread.
+		 */
+		DISCARD
+	}
+
+	private static final ExecutorService refills = Executors.newSingleThreadExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "uExe-lua-refill");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final int size;
+	private final ResetPolicy policy;
+	private final BlockingQueue<Globals> idle;
+	// the pooled instances, with their snapshot when they are restored
+	private final Map<Globals, Snapshot> pooled =
+			Collections.synchronizedMap(new IdentityHashMap<Globals, Snapshot>());
+
+	public GlobalsPool() {
+		this(DEFAULT_SIZE, ResetPolicy.RESTORE);
+	}
+
+	public GlobalsPool(int size, ResetPolicy policy) {
+		if (size < 1) throw new IllegalArgumentException("Pool size must be positive.");
+		this.size = size;
+		this.policy = policy;
+		this.idle = new ArrayBlockingQueue<Globals>(size);
+		for (int i = 0; i < size; i++){
+			idle.offer(createPooled());
+		}
+	}
+
+	public int size() {	return size;	}
+
+	public ResetPolicy policy() {	return policy;	}
+
+	public int idle() {	return idle.size();	}
+
+	public Globals borrow() {
+		Globals _G = idle.poll();
+		if (_G == null) return JsePlatform.standardGlobals();
+		return _G;
+	}
+
+	public void release(Globals _G) {
+		if (!pooled.containsKey(_G)) return; // an extra instance or not ours
+		if (policy == ResetPolicy.DISCARD){
+			pooled.remove(_G);
+			refills.execute(new Runnable() {
+				public void run() {
+					idle.offer(createPooled());
+				}
+			});
+			return;
+		}
+		pooled.get(_G).restore();
+		if (!idle.offer(_G)){
+			pooled.remove(_G);
+		}
+	}
+
+	private Globals createPooled() {
+		Globals _G = JsePlatform.standardGlobals();
+		pooled.put(_G, policy == ResetPolicy.RESTORE ? new Snapshot(_G) : null);
+		return _G;
+	}
+
+	/**
+	 * Records the content and the metatable of every table reachable from 
+	 * the global table (libraries, package.loaded, package.preload, 
+	 * package.searchers, metatables, ...). Tables created later are not 
+	 * recorded, they are dropped along with the keys that refer to them.
+	 */
+	private static class Snapshot {
+		private final Map<LuaTable, Map<LuaValue, LuaValue>> tables =
+				new IdentityHashMap<LuaTable, Map<LuaValue, LuaValue>>();
+		private final Map<LuaTable, LuaValue> metatables =
+				new IdentityHashMap<LuaTable, LuaValue>();
+
+		Snapshot(Globals _G) {
+			LinkedList<LuaValue> pending = new LinkedList<LuaValue>();
+			pending.add(_G);
+			while (!pending.isEmpty()){
+				LuaValue value = pending.removeFirst();
+				if (!value.istable() || tables.containsKey(value)) continue;
+				LuaTable table = value.checktable();
+				Map<LuaValue, LuaValue> content = copy(table);
+				tables.put(table, content);
+				pending.addAll(content.values());
+				LuaValue metatable = table.getmetatable();
+				metatables.put(table, metatable);
+				if (metatable != null) pending.add(metatable);
+			}
+		}
+
+		private Map<LuaValue, LuaValue> copy(LuaTable table) {
+			Map<LuaValue, LuaValue> content = new HashMap<LuaValue, LuaValue>();
+			for (LuaValue key : table.keys()){
+				content.put(key, table.rawget(key));
+			}
+			return content;
+		}
+
+		void restore() {
+			for (Entry<LuaTable, Map<LuaValue, LuaValue>> e : tables.entrySet()){
+				restore(e.getKey(), e.getValue());
+			}
+		}
+
+		private void restore(LuaTable table, Map<LuaValue, LuaValue> content) {
+			LuaValue metatable = metatables.get(table);
+			if (table.getmetatable() != metatable){
+				table.setmetatable(metatable == null ? LuaValue.NIL : metatable);
+			}
+			for (LuaValue key : table.keys()){
+				if (!content.containsKey(key)){
+					table.rawset(key, LuaValue.NIL);
+				}
+			}
+			for (Entry<LuaValue, LuaValue> e : content.entrySet()){
+				if (table.rawget(e.getKey()) != e.getValue()){
+					table.rawset(e.getKey(), e.getValue());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package org.unbiquitous.driver.execution.remoteExecution;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.Prototype;
+
+/**
+ * Bounded LRU cache of compiled Lua chunks indexed by the hash of their
+ * source code. A {@link Prototype} carries no execution state, so the same
+ * one can be instantiated into as many closures as needed.
+ *
+ * @author Fabricio Nogueira Buzeto
+ *
+ */
+public class ScriptCache {
+
+	public static final int DEFAULT_SIZE = 128;
+
+	private final int size;
+	private final Map<String, Prototype> prototypes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public ScriptCache() {
+		this(DEFAULT_SIZE);
+	}
+
+	@SuppressWarnings("serial")
+	public ScriptCache(int size) {
+		if (size < 1) throw new IllegalArgumentException("Cache size must be positive.");
+		this.size = size;
+		this.prototypes = new LinkedHashMap<String, Prototype>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<String, Prototype> eldest) {
+				if (size() > ScriptCache.this.size){
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return The compiled version of the script, compiling it only when
+	 * it's not already known.
+	 */
+	public Prototype compile(Globals _G, String script, String chunkname)
+			throws IOException {
+		String key = hash(script);
+		Prototype p;
+		synchronized (prototypes) {
+			p = prototypes.get(key);
+		}
+		if (p != null){
+			hits.incrementAndGet();
+			return p;
+		}
+		misses.incrementAndGet();
+		p = _G.compilePrototype(new StringReader(script), chunkname);
+		synchronized (prototypes) {
+			prototypes.put(key, p);
+		}
+		return p;
+	}
+
+	public int size() {	return size;	}
+
+	public int cached() {
+		synchronized (prototypes) {
+			return prototypes.size();
+		}
+	}
+
+	public long hits() {	return hits.get();	}
+
+	public long misses() {	return misses.get();	}
+
+	public long evictions() {	return evictions.get();	}
+
+	public void clear() {
+		synchronized (prototypes) {
+			prototypes.clear();
+		}
+	}
+
+	static String hash(String script) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] bytes = digest.digest(script.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(bytes.length * 2);
+			for (byte b : bytes){
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+				hex.append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -1,6 +1,11 @@
 package org.unbiquitous.driver.execution.remoteExecution;
 
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaInteger;
+import org.luaj.vm2.LuaTable;
+import org.unbiquitous.driver.execution.remoteExecution.CallValues.Scope;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.OneArgFunction;
 import org.luaj.vm2.lib.ThreeArgFunction;
 import org.luaj.vm2.lib.TwoArgFunction;
 import org.luaj.vm2.lib.VarArgFunction;
@@ -15,28 +20,114 @@ public class UosLuaCall extends VarArgFunction {
 	
 	@Override
 	public LuaValue call(LuaValue modname, LuaValue env) {
+		LuaValue library = library();
+		env.set( "Uos", library );
+		return library;
+	}
+
+	private static LuaValue library() {
 		LuaValue library = tableOf();
 		library.set( "set", new set() );
 		library.set( "get", new get() );
-		env.set( "Uos", library );
 		return library;
 	}
+	
+	/**
+	 * Creates the environment where a single script runs. It provides
+	 * <code>get(key)</code> and <code>set(key, value)</code> bound to the
+	 * informed scope, along with <code>UOS_ID</code> and the <code>Uos</code> 
+	 * library for older scripts. Anything else is looked up on the globals.
+	 * Global variables created by the script stay on this environment.
+	 * 
+	 * The <code>Uos</code> library is bound to the scope as well, any id other
+	 * than <code>UOS_ID</code> is refused. Once bound the scope can't be 
+	 * reached by the library loaded through <code>require</code>.
+	 */
+	public static LuaTable environment(Scope scope, LuaValue globals) {
+		scope.bind();
+		LuaTable env = new LuaTable();
+		env.set( "UOS_ID", LuaInteger.valueOf(scope.id()) );
+		LuaValue library = tableOf();
+		library.set( "set", new scopedSet(scope) );
+		library.set( "get", new scopedGet(scope) );
+		env.set( "Uos", library );
+		env.set( "set", new boundSet(scope) );
+		env.set( "get", new boundGet(scope) );
+		LuaTable meta = new LuaTable();
+		meta.set( LuaValue.INDEX, globals );
+		env.setmetatable(meta);
+		return env;
+	}
 
+	/** @return The open scope with this id, null if there's none to reach.*/
+	private static Scope unbound(LuaValue id) {
+		Scope scope = values.scope(id.checklong());
+		return scope == null || scope.bound() ? null : scope;
+	}
+	
 	static class set extends ThreeArgFunction {
 		public LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
-			long	id = Long.parseLong(arg1.tojstring());
+			Scope scope = unbound(arg1);
+			if (scope == null) throw new LuaError("No call with UOS_ID "+arg1.tojstring());
  			String key = arg2.tojstring();
  			String value = arg3.tojstring();
- 			values.setValue(id,key,value);
+ 			scope.setValue(key,value);
  			return LuaValue.valueOf(value);
 		}
 	}
 	
 	static class get extends TwoArgFunction {
 		public LuaValue call(LuaValue arg1, LuaValue arg2) {
-			long	id = Long.parseLong(arg1.tojstring());
- 			String key = arg2.tojstring();
- 			String value = values.getValue(id,key);
+			Scope scope = unbound(arg1);
+ 			String value = scope == null ? null : scope.getValue(arg2.tojstring());
+			return value == null?LuaValue.NIL:LuaValue.valueOf(value);
+		}
+	}
+	
+	/** Refuses ids of other calls. */
+	private static void check(Scope scope, LuaValue id) {
+		if (scope.id() != id.checklong()){
+			throw new LuaError("UOS_ID "+id.tojstring()+" isn't the id of this call");
+		}
+	}
+	
+	static class scopedSet extends ThreeArgFunction {
+		private final Scope scope;
+		scopedSet(Scope scope) {	this.scope = scope;	}
+		public LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+			check(scope, arg1);
+ 			String value = arg3.tojstring();
+ 			scope.setValue(arg2.tojstring(),value);
+ 			return LuaValue.valueOf(value);
+		}
+	}
+	
+	static class scopedGet extends TwoArgFunction {
+		private final Scope scope;
+		scopedGet(Scope scope) {	this.scope = scope;	}
+		public LuaValue call(LuaValue arg1, LuaValue arg2) {
+			check(scope, arg1);
+ 			String value = scope.getValue(arg2.tojstring());
+			return value == null?LuaValue.NIL:LuaValue.valueOf(value);
+		}
+	}
+	
+	static class boundSet extends TwoArgFunction {
+		private final Scope scope;
+		boundSet(Scope scope) {	this.scope = scope;	}
+		public LuaValue call(LuaValue arg1, LuaValue arg2) {
+ 			String key = arg1.tojstring();
+ 			String value = arg2.tojstring();
+ 			scope.setValue(key,value);
+ 			return LuaValue.valueOf(value);
+		}
+	}
+	
+	static class boundGet extends OneArgFunction {
+		private final Scope scope;
+		boundGet(Scope scope) {	this.scope = scope;	}
+		public LuaValue call(LuaValue arg) {
+ 			String value = scope.getValue(arg.tojstring());
 			return value == null?LuaValue.NIL:LuaValue.valueOf(value);
 		}
 	}
@@ -3,19 +3,26 @@ package org.unbiquitous.driver.execution;
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.unbiquitous.driver.execution.executeAgent.ClassToolbox;
+import org.unbiquitous.driver.execution.remoteExecution.GlobalsPool;
+import org.unbiquitous.driver.execution.remoteExecution.GlobalsPool.ResetPolicy;
+import org.unbiquitous.uos.core.InitialProperties;
 import org.unbiquitous.uos.core.driverManager.UosDriver;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpService;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpService.ParameterType;
+import org.unbiquitous.uos.core.messageEngine.messages.Call;
 import org.unbiquitous.uos.core.messageEngine.messages.Response;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -79,10 +86,88 @@ public class ExecutionDriverTest {
 		Response response = new Response();
 		driver.listKnownClasses(null, response, null);
 		assertThat(response.getResponseData("classes")).isEqualTo(driver.toolbox().listKnownClasses());
+		assertThat(response.getResponseData("epoch")).isEqualTo(driver.toolbox().epoch());
 		ObjectNode json = mapper.valueToTree(response);
 		ArrayNode jsonArray = (ArrayNode) json.get("responseData").get("classes");
 		assertThat((List<String>) mapper.treeToValue(jsonArray, List.class)).isEqualTo(driver.toolbox().listKnownClasses());
 
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void listKnownClassesAmongCandidates() throws IOException {
+		List<String> candidates = Arrays.asList(
+				ExecutionDriver.class.getName(), "org.unbiquitous.NotAClass");
+		
+		Call call = new Call("uos.ExecutionDriver", "listKnownClasses");
+		call.addParameter("candidates", candidates);
+		Response response = new Response();
+		driver.listKnownClasses(call, response, null);
+		assertThat(response.getResponseData("classes"))
+			.isEqualTo(Arrays.asList(ExecutionDriver.class.getName()));
+		
+		call = new Call("uos.ExecutionDriver", "listKnownClasses");
+		call.addParameter("candidates", mapper.valueToTree(candidates));
+		response = new Response();
+		driver.listKnownClasses(call, response, null);
+		assertThat(response.getResponseData("classes"))
+			.isEqualTo(Arrays.asList(ExecutionDriver.class.getName()));
+		
+		call = new Call("uos.ExecutionDriver", "listKnownClasses");
+		call.addParameter("candidates", mapper.writeValueAsString(candidates));
+		response = new Response();
+		driver.listKnownClasses(call, response, null);
+		assertThat(response.getResponseData("classes"))
+			.isEqualTo(Arrays.asList(ExecutionDriver.class.getName()));
+	}
+
+	@Test
+	public void destroyClosesTheToolbox() {
+		final AtomicBoolean closed = new AtomicBoolean();
+		driver = new ExecutionDriver(new ClassToolbox(){
+			public void close() {
+				closed.set(true);
+				super.close();
+			}
+		});
+		driver.init(null, null, null);
+		driver.destroy();
+		assertTrue(closed.get());
+	}
+
+	@Test
+	public void luaPoolIsOnlyCreatedOnInit() {
+		assertNull(driver.globals());
+		assertNull(driver.scripts());
+		driver.init(null, null, null);
+		assertNotNull(driver.globals());
+		assertNotNull(driver.scripts());
+	}
+
+	@Test
+	public void initKeepsThePoolWhenNothingChanged() {
+		driver.init(null, null, null);
+		GlobalsPool globals = driver.globals();
+		driver.init(null, null, null);
+		assertSame(globals, driver.globals());
+	}
+
+	@Test
+	public void luaPoolHasDefaultsWithoutProperties() {
+		driver.init(null, null, null);
+		assertEquals(4, driver.globals().size());
+		assertEquals(ResetPolicy.RESTORE, driver.globals().policy());
+	}
+
+	@Test
+	public void luaPoolIsConfiguredThroughProperties() {
+		InitialProperties props = new InitialProperties();
+		props.put(ExecutionDriver.LUA_POOL_SIZE_KEY, "7");
+		props.put(ExecutionDriver.LUA_RESET_KEY, "discard");
+		props.put(ExecutionDriver.LUA_CACHE_SIZE_KEY, "12");
+		driver.init(null, props, null);
+		assertEquals(7, driver.globals().size());
+		assertEquals(ResetPolicy.DISCARD, driver.globals().policy());
+		assertEquals(12, driver.scripts().size());
+	}
+
+}
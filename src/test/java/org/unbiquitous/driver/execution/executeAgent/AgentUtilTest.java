@@ -3,6 +3,9 @@ package org.unbiquitous.driver.execution.executeAgent;
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Mockito.mock;
@@ -22,6 +25,10 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.BeforeClass;
 import org.junit.Rule;
@@ -83,6 +90,218 @@ public class AgentUtilTest {
 
 	}
 
+	@Test
+	public void asksOnlyAboutTheClassesTheAgentDependsOn() throws Exception {
+		Gateway gateway = mockGateway(new ByteArrayOutputStream(), new ByteArrayOutputStream());
+
+		agentUtil.move(new MyAgent(), new UpDevice("target"), gateway);
+
+		ArgumentCaptor<Call> callCaptor = ArgumentCaptor.forClass(Call.class);
+		verify(gateway, times(2)).callService(any(UpDevice.class), callCaptor.capture());
+		Call listKnownClasses = callCaptor.getAllValues().get(0);
+		assertEquals(box.dependenciesOf(MyAgent.class), 
+						listKnownClasses.getParameter("candidates"));
+		assertThat(box.dependenciesOf(MyAgent.class))
+			.contains(MyAgent.class.getName(), MyAgent.AgentSpy.class.getName());
+	}
+
+	@Test
+	public void noClassesAreListedWhenNoPackageIsSent() throws Exception {
+		Gateway gateway = mockGateway(new ByteArrayOutputStream(), new ByteArrayOutputStream());
+
+		agentUtil.move(new MyAgent(), new UpDevice("target"), gateway, false);
+
+		verify(gateway, times(0)).callService(any(UpDevice.class), 
+											argThat(serviceMatcher("listKnownClasses")));
+	}
+
+	@Test
+	public void repeatedMovesToTheSameDeviceDontListClassesAgain() throws Exception {
+		Gateway gateway = mockGateway(new ByteArrayOutputStream(), new ByteArrayOutputStream());
+		when(gateway.callService((UpDevice) any(), argThat(serviceMatcher("listKnownClasses"))))
+				.thenReturn(knownClassesResponse("1", MyAgent.AgentSpy.class.getName()));
+
+		UpDevice target = new UpDevice("cachingTarget");
+		agentUtil.move(new MyAgent(), target, gateway);
+		agentUtil.move(new MyAgent(), target, gateway);
+
+		verify(gateway, times(1)).callService(any(UpDevice.class), 
+											argThat(serviceMatcher("listKnownClasses")));
+		ArgumentCaptor<Call> executes = ArgumentCaptor.forClass(Call.class);
+		verify(gateway, times(2)).callService(any(UpDevice.class), 
+											argThat(serviceMatcher("executeAgent")));
+		verify(gateway, times(3)).callService(any(UpDevice.class), executes.capture());
+		assertEquals("1", executes.getValue().getParameter("epoch"));
+	}
+
+	@Test
+	public void movesThroughTheSharedInstanceReuseThePackage() throws Exception {
+		AgentUtil.setInstance(null);
+		try {
+			AgentUtil shared = AgentUtil.getInstance();
+			assertSame(shared, AgentUtil.getInstance());
+			Gateway gateway = mockGateway(new ByteArrayOutputStream(), new ByteArrayOutputStream());
+
+			AgentUtil.getInstance().move(new MyAgent(), new UpDevice("target"), gateway);
+			AgentUtil.getInstance().move(new MyAgent(), new UpDevice("target"), gateway);
+
+			assertEquals(1, shared.toolbox().builtPackages().misses());
+			assertEquals(1, shared.toolbox().builtPackages().hits());
+		} finally {
+			AgentUtil.setInstance(null);
+		}
+	}
+
+	@Test
+	public void movesThroughTheSharedInstanceReuseTheWalkedDependencies() throws Exception {
+		AgentUtil.setInstance(null);
+		try {
+			Gateway gateway = mockGateway(new ByteArrayOutputStream(), new ByteArrayOutputStream());
+
+			AgentUtil.getInstance().move(new MyAgent(), new UpDevice("target"), gateway);
+			DependencyGraph walked = AgentUtil.getInstance().toolbox().dependencyGraph();
+			int classes = walked.size();
+			assertTrue(walked.get(MyAgent.class.getName()) != null);
+
+			AgentUtil.getInstance().move(new MyAgent(), new UpDevice("target"), gateway);
+			assertSame(walked, AgentUtil.getInstance().toolbox().dependencyGraph());
+			assertEquals(classes, walked.size());
+		} finally {
+			AgentUtil.setInstance(null);
+		}
+	}
+
+	@Test
+	public void asksAgainWhenTheDeviceClassesChanged() throws Exception {
+		Gateway gateway = mock(Gateway.class);
+		when(gateway.callService((UpDevice) any(), argThat(serviceMatcher("listKnownClasses"))))
+				.thenReturn(knownClassesResponse("1", MyAgent.AgentSpy.class.getName()),
+							knownClassesResponse("2"));
+		Response outdated = new Response();
+		outdated.setError(AgentUtil.OUTDATED_CLASSES_ERROR);
+		when(gateway.callService(any(UpDevice.class), argThat(serviceMatcher("executeAgent"))))
+				.thenReturn(streamResponse(new ByteArrayOutputStream(), new ByteArrayOutputStream()),
+							outdated,
+							streamResponse(new ByteArrayOutputStream(), new ByteArrayOutputStream()));
+
+		UpDevice target = new UpDevice("changingTarget");
+		agentUtil.move(new MyAgent(), target, gateway);
+		agentUtil.move(new MyAgent(), target, gateway);
+
+		verify(gateway, times(2)).callService(any(UpDevice.class), 
+											argThat(serviceMatcher("listKnownClasses")));
+		ArgumentCaptor<Call> calls = ArgumentCaptor.forClass(Call.class);
+		verify(gateway, times(5)).callService(any(UpDevice.class), calls.capture());
+		assertEquals("1", calls.getAllValues().get(2).getParameter("epoch"));
+		assertEquals("2", calls.getValue().getParameter("epoch"));
+	}
+
+	@Test
+	public void announcesThePackageAndSkipsItWhenTheTargetHasIt() throws Exception {
+		ByteArrayOutputStream jarSpy = new ByteArrayOutputStream();
+		Gateway gateway = mockGateway(new ByteArrayOutputStream(), jarSpy);
+		Response cached = streamResponse(new ByteArrayOutputStream(), jarSpy);
+		cached.addParameter("cached", "true");
+		when(gateway.callService(any(UpDevice.class), argThat(serviceMatcher("executeAgent"))))
+				.thenReturn(cached);
+
+		agentUtil.move(new MyAgent(), new UpDevice("target"), gateway);
+
+		ArgumentCaptor<Call> calls = ArgumentCaptor.forClass(Call.class);
+		verify(gateway, times(2)).callService(any(UpDevice.class), calls.capture());
+		assertEquals(box.hashOf(box.packageBytesFor(MyAgent.class, null)),
+						calls.getValue().getParameter("package"));
+		assertEquals(0, jarSpy.size());
+	}
+
+	@Test
+	public void sendsThePackageAlongWithTheAgent() throws Exception {
+		final CountDownLatch packageSent = new CountDownLatch(1);
+		final AtomicBoolean agentWaited = new AtomicBoolean();
+		OutputStream agentSpy = new ByteArrayOutputStream() {
+			public void close() throws IOException {
+				try {
+					// only completes if the package isn't waiting for the agent
+					agentWaited.set(packageSent.await(1, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					throw new IOException(e.getMessage());
+				}
+			}
+		};
+		ByteArrayOutputStream jarSpy = new ByteArrayOutputStream() {
+			public void close() {
+				packageSent.countDown();
+			}
+		};
+		Gateway gateway = mockGateway(agentSpy, jarSpy);
+
+		agentUtil.move(new MyAgent(), new UpDevice("target"), gateway);
+
+		assertTrue("The agent must be sent while the package is", agentWaited.get());
+		assertArrayEquals(box.packageBytesFor(MyAgent.class, null), jarSpy.toByteArray());
+	}
+
+	@Test
+	public void givesUpThePackageWhenTheAgentCantBeSent() throws Exception {
+		OutputStream brokenAgent = new OutputStream() {
+			public void write(int b) throws IOException {
+				throw new IOException("broken channel");
+			}
+		};
+		final CountDownLatch released = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		OutputStream stalledJar = new OutputStream() {
+			public void write(int b) throws IOException {
+				try {
+					released.await(); // only an abort stops this write
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+			}
+			public void close() {
+				closed.countDown();
+			}
+		};
+		Gateway gateway = mockGateway(brokenAgent, stalledJar);
+
+		try {
+			agentUtil.move(new MyAgent(), new UpDevice("target"), gateway);
+			fail("The agent couldn't be sent");
+		} catch (IOException e) {}
+
+		assertTrue("The package channel must be closed", closed.await(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void doesntSendAnythingWhenTheTargetRefusesTheAgent() throws Exception {
+		ByteArrayOutputStream agentSpy = new ByteArrayOutputStream();
+		ByteArrayOutputStream jarSpy = new ByteArrayOutputStream();
+		Gateway gateway = mockGateway(agentSpy, jarSpy);
+		Response full = streamResponse(agentSpy, jarSpy);
+		full.setError("Agent rejected since too many agents are waiting for execution.");
+		when(gateway.callService(any(UpDevice.class), argThat(serviceMatcher("executeAgent"))))
+				.thenReturn(full);
+
+		try {
+			agentUtil.move(new MyAgent(), new UpDevice("busyTarget"), gateway);
+			fail("The target refused the agent");
+		} catch (ServiceCallException e) {}
+
+		assertEquals(0, agentSpy.size());
+		assertEquals(0, jarSpy.size());
+	}
+
+	@Test
+	public void movingOnlyTheAgentDoesntAnnounceAPackage() throws Exception {
+		Gateway gateway = mockGateway(new ByteArrayOutputStream(), new ByteArrayOutputStream());
+
+		agentUtil.move(new MyAgent(), new UpDevice("target"), gateway, false);
+
+		ArgumentCaptor<Call> calls = ArgumentCaptor.forClass(Call.class);
+		verify(gateway).callService(any(UpDevice.class), calls.capture());
+		assertEquals(null, calls.getValue().getParameter("jar"));
+	}
+
 	@Test
 	public void movingSendsAgentSerialized() throws Exception {
 		MyAgent agent = new MyAgent();
@@ -232,7 +451,12 @@ public class AgentUtilTest {
 
 		ArgumentMatcher<Call> execute = serviceMatcher("executeAgent");
 
-		when(gateway.callService(any(UpDevice.class), argThat(execute))).thenReturn(new Response() {
+		when(gateway.callService(any(UpDevice.class), argThat(execute))).thenReturn(streamResponse(spy, jarSpy));
+		return gateway;
+	}
+
+	private Response streamResponse(final OutputStream spy, final OutputStream jarSpy) {
+		return new Response() {
 			@Override
 			public CallContext getMessageContext() {
 				return new CallContext() {
@@ -252,8 +476,14 @@ public class AgentUtilTest {
 					}
 				};
 			}
-		});
-		return gateway;
+		};
+	}
+
+	private Response knownClassesResponse(String epoch, String... classes) {
+		Response response = new Response();
+		response.addParameter("classes", mapper.valueToTree(Arrays.asList(classes)));
+		response.addParameter("epoch", epoch);
+		return response;
 	}
 
 	private ArgumentMatcher<Call> serviceMatcher(final String serviceName) {
@@ -0,0 +1,64 @@
+package org.unbiquitous.driver.execution.executeAgent;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ClassIndexTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private File tempDir;
+	
+	@Before public void setUp(){
+		tempDir = folder.getRoot();
+	}
+	
+	@Test public void locatesClassesOnTheLastRootAdded() throws Exception {
+		File first = new File(tempDir, "first.jar");
+		File classes = folder.newFolder("classes");
+		ClassIndex index = new ClassIndex();
+		index.add(first, Arrays.asList("org.Alpha", "org.Beta", "Gamma"));
+		index.add(classes, Arrays.asList("org.Beta", "org.inner.Delta"));
+		
+		assertEquals(first, index.locate("org.Alpha"));
+		assertEquals(first, index.locate("Gamma"));
+		assertEquals(new File(classes, "org"+File.separator+"Beta.class"), 
+						index.locate("org.Beta"));
+		assertEquals(null, index.locate("org.Epsilon"));
+		assertThat(index.names()).containsOnly(
+				"org.Alpha", "org.Beta", "Gamma", "org.inner.Delta");
+	}
+
+	@Test public void knowsBlacklistedClassesButDoesntLocateThem() throws Exception {
+		File jar = new File(tempDir, "some.jar");
+		ClassIndex index = new ClassIndex();
+		index.add(jar, Arrays.asList("org.Alpha", "org.Beta"));
+		index.blacklist(Arrays.asList("org.Beta", "org.Gamma"));
+		
+		assertEquals(jar, index.locate("org.Alpha"));
+		assertEquals(null, index.locate("org.Beta"));
+		assertEquals(null, index.locate("org.Gamma"));
+		assertThat(index.names()).containsOnly("org.Alpha", "org.Beta", "org.Gamma");
+	}
+
+	@Test public void digestOnlyChangesWithTheKnownClasses() throws Exception {
+		ClassIndex index = new ClassIndex();
+		index.add(new File(tempDir, "some.jar"), Arrays.asList("org.Alpha", "org.Beta"));
+		long digest = index.digest();
+		
+		index.blacklist(Arrays.asList("org.Beta"));
+		index.add(new File(tempDir, "other.jar"), Arrays.asList("org.Alpha"));
+		assertEquals(digest, index.digest());
+		
+		index.add(new File(tempDir, "other.jar"), Arrays.asList("org.Gamma"));
+		assertThat(index.digest()).isNotEqualTo(digest);
+	}
+}
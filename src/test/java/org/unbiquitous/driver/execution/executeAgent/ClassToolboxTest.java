@@ -2,20 +2,41 @@ package org.unbiquitous.driver.execution.executeAgent;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.unbiquitous.driver.execution.executeAgent.CompilationUtil.assertStream;
 import static org.unbiquitous.driver.execution.executeAgent.CompilationUtil.compileToFile;
 import static org.unbiquitous.driver.execution.executeAgent.CompilationUtil.compileToPath;
+import static org.unbiquitous.driver.execution.executeAgent.CompilationUtil.createJar;
+import static org.unbiquitous.driver.execution.executeAgent.CompilationUtil.randomBytes;
+import static org.unbiquitous.driver.execution.executeAgent.CompilationUtil.zipDirectory;
 import static org.unbiquitous.driver.execution.executeAgent.CompilationUtil.zipEntries;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.lang.reflect.Method;
+import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import org.junit.Before;
@@ -24,6 +45,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.luaj.vm2.Lua;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mockito;
 import org.unbiquitous.driver.execution.executeAgent.MyAgent.AgentSpy;
 import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;
@@ -85,6 +107,17 @@ public class ClassToolboxTest {
 		assertStream(expected_mockito, box.findClass(Mockito.class));
 	}
 
+	@Test public void mustFindSeveralClassesInsideTheSameJar() throws Exception {
+		for (int i = 0; i < 2; i++){
+			assertStream(resourceOf(Mockito.class), box.findClass(Mockito.class));
+			assertStream(resourceOf(ArgumentMatcher.class), box.findClass(ArgumentMatcher.class));
+		}
+	}
+	
+	private InputStream resourceOf(Class<?> clazz) {
+		return clazz.getResourceAsStream("/"+clazz.getName().replace('.', '/')+".class");
+	}
+	
 	@Test public void mustNotFindJDKClasses() throws Exception {
 		assertStream(null, box.findClass(Integer.class));
 	}
@@ -105,6 +138,22 @@ public class ClassToolboxTest {
 		assertStream(null, box.findClass(Gateway.class));
 	}
 	
+	@Test public void mustNotFindClassesOnJarsBlacklistedTogether() throws Exception{
+		box.add2BlackList("luaj-jse", "uos-core", "/uos_core/target/classes");
+		assertStream(null, box.findClass(Lua.class));
+		assertStream(null, box.findClass(Gateway.class));
+		assertStream(resourceOf(Mockito.class), box.findClass(Mockito.class));
+		assertThat(box.listKnownClasses())
+			.contains(Lua.class.getName(), Gateway.class.getName());
+	}
+	
+	@Test public void mustNotFindClassesOnJarsBlacklistedAfterTheIndexIsReady() throws Exception{
+		assertStream(resourceOf(Lua.class), box.findClass(Lua.class));
+		box.add2BlackList("luaj-jse");
+		assertStream(null, box.findClass(Lua.class));
+		assertStream(resourceOf(Mockito.class), box.findClass(Mockito.class));
+	}
+	
 	@Test public void mustLoadAClassFromStream() throws Exception {
 
 		String source = "package org.unbiquitous.driver.execution.executeAgent;"
@@ -117,8 +166,8 @@ public class ClassToolboxTest {
 		ClassLoader loader = box.load("org.unbiquitous.driver.execution.executeAgent.Foo",
 				new FileInputStream(origin));
 
-		assertEquals("default ClassLoader must me URLClassLoader.",
-						URLClassLoader.class, loader.getClass());
+		assertEquals("default ClassLoader must me MemoryClassLoader.",
+						MemoryClassLoader.class, loader.getClass());
 		
 		Object o = loader.loadClass("org.unbiquitous.driver.execution.executeAgent.Foo")
 				.newInstance();
@@ -153,17 +202,10 @@ public class ClassToolboxTest {
 										"org.unbiquitous.driver.execution.Child"}, 
 									tempDir);
 		
-		File jar = folder.newFile("temp.jar");
-		JarPackager packager = new JarPackager(box);
-		final ZipOutputStream zos = new ZipOutputStream( new FileOutputStream( jar ) );
-		packager.zip(path, path, zos);
-		zos.close();
+		ClassLoader loader = box.load(new ByteArrayInputStream(zipDirectory(path)));
 		
-		
-		ClassLoader loader = box.load(new FileInputStream(jar));
-		
-		assertEquals("default ClassLoader must me URLClassLoader.",
-				URLClassLoader.class, loader.getClass());
+		assertEquals("default ClassLoader must me MemoryClassLoader.",
+				MemoryClassLoader.class, loader.getClass());
 		
 		Object o = loader.loadClass("org.unbiquitous.driver.execution.Child")
 				.newInstance();
@@ -172,6 +214,146 @@ public class ClassToolboxTest {
 		assertEquals(3, plusOne.invoke(o, new Object[]{}));
 	}
 	
+	@Test public void loadsResourcesFromAJar() throws Exception {
+		File jar = folder.newFile("resources.jar");
+		final ZipOutputStream zos = new ZipOutputStream( new FileOutputStream( jar ) );
+		zos.putNextEntry(new ZipEntry("org/unbiquitous/hello.txt"));
+		zos.write("Hello".getBytes());
+		zos.close();
+		
+		ClassLoader loader = box.load(new FileInputStream(jar));
+		
+		assertStream(new ByteArrayInputStream("Hello".getBytes()), 
+					loader.getResourceAsStream("org/unbiquitous/hello.txt"));
+		assertStream(new ByteArrayInputStream("Hello".getBytes()), 
+					loader.getResource("org/unbiquitous/hello.txt").openStream());
+	}
+	
+	@Test public void platformsCanFallbackToFiles() throws Exception {
+		String parentSrc = 
+				"package org.unbiquitous.driver.execution;"
+			+	"public class Parent{"
+			+	"	public int two(){return 2;}"
+			+	"}";
+		File path = compileToPath(new String[]{parentSrc}, 
+				new String[]{"org.unbiquitous.driver.execution.Parent"}, tempDir);
+		byte[] jar = zipDirectory(path);
+		
+		ClassToolbox.Platform original = ClassToolbox.platform;
+		try {
+			ClassToolbox.platform = new ClassToolbox.Platform() {
+				protected ClassLoader createClassLoader(File input) throws Exception {
+					return new URLClassLoader(new URL[] { input.toURI().toURL() },
+							ClassLoader.getSystemClassLoader());
+				}
+				protected File createTempDir() throws Exception {
+					return folder.newFolder("fallback");
+				}
+			};
+			ClassLoader loader = box.load(new ByteArrayInputStream(jar));
+			assertEquals(URLClassLoader.class, loader.getClass());
+			Object o = loader.loadClass("org.unbiquitous.driver.execution.Parent")
+								.newInstance();
+			assertEquals(2, o.getClass().getMethod("two").invoke(o));
+		} finally {
+			ClassToolbox.platform = original;
+		}
+	}
+	
+	@Test public void writesClassFilesFromAnyStream() throws Exception {
+		byte[] content = randomBytes(1024*1024+17);
+		
+		loadOnTempDir("org.unbiquitous.Big", new ByteArrayInputStream(content));
+		
+		File written = new File(tempDir, "org/unbiquitous/Big.class");
+		assertEquals(content.length, written.length());
+		assertStream(new ByteArrayInputStream(content), new FileInputStream(written));
+	}
+	
+	@Test public void writesClassFilesFromAFileStream() throws Exception {
+		byte[] content = randomBytes(1024*1024+17);
+		File origin = folder.newFile("origin.class");
+		FileOutputStream writer = new FileOutputStream(origin);
+		writer.write(content);
+		writer.close();
+		
+		loadOnTempDir("org.unbiquitous.Big", new FileInputStream(origin));
+		
+		File written = new File(tempDir, "org/unbiquitous/Big.class");
+		assertEquals(content.length, written.length());
+		assertStream(new ByteArrayInputStream(content), new FileInputStream(written));
+	}
+	
+	/** Platforms without a memory loader write the class on a temp dir. */
+	private void loadOnTempDir(String className, InputStream clazz) throws Exception {
+		ClassToolbox.Platform original = ClassToolbox.platform;
+		try {
+			ClassToolbox.platform = new ClassToolbox.Platform() {
+				protected ClassLoader createClassLoader(File input) throws Exception {
+					return ClassLoader.getSystemClassLoader();
+				}
+				protected File createTempDir() throws Exception {
+					return tempDir;
+				}
+			};
+			box.load(className, clazz);
+		} finally {
+			ClassToolbox.platform = original;
+		}
+	}
+	
+	@Test public void indexesTheClasspathWithoutBlockingTheCaller() throws Exception {
+		final CountDownLatch indexing = new CountDownLatch(1);
+		ClassFinder finder = new ClassFinder(new ClasspathCache(null){
+			Scan scan(File path, Executor pool) {
+				try {
+					indexing.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				return super.scan(path, pool);
+			}
+		});
+		finder.init();
+		finder.add2BlackList("luaj-jse");
+		
+		indexing.countDown();
+		assertThat(finder.knownClasses()).contains(MyAgent.class.getName());
+		assertStream(null, finder.findClass(Lua.class, null));
+	}
+	
+	@Test public void appliesTheBlacklistWhileTheScannedEntriesAreKept() throws Exception {
+		final AtomicBoolean released = new AtomicBoolean();
+		final AtomicInteger lateScans = new AtomicInteger();
+		ClassFinder finder = new ClassFinder(new ClasspathCache(null){
+			Scan scan(File path, Executor pool) {
+				if (released.get()) lateScans.incrementAndGet();
+				return super.scan(path, pool);
+			}
+			synchronized void release() {
+				released.set(true);
+				super.release();
+			}
+		});
+		finder.add2BlackList("luaj-jse");
+		finder.init();
+		
+		assertThat(finder.knownClasses()).contains(Lua.class.getName());
+		assertStream(null, finder.findClass(Lua.class, null));
+		assertEquals(0, lateScans.get());
+	}
+	
+	@Test public void closingReleasesTheOpenJars() throws Exception {
+		ClassFinder finder = new ClassFinder(new ClasspathCache(null));
+		finder.init();
+		assertStream(resourceOf(Lua.class), finder.findClass(Lua.class, null));
+		assertEquals(1, finder.openedJars());
+		
+		finder.close();
+		assertEquals(0, finder.openedJars());
+		assertStream(resourceOf(Lua.class), finder.findClass(Lua.class, null));
+	}
+	
 	@Test public void packageJarWithASingleAgentClass() throws Exception{
 		box.add2BlackList("uos-core");
 		box.add2BlackList("/uos_core/target/classes");
@@ -245,6 +427,7 @@ public class ClassToolboxTest {
 	 * - Must handle array types in parameters
 	 * - Must handle array types in return 
 	 * - Must handle primitive types in arrays
+	 * - Must include types used only inside method bodies
 	 * TODO: JarPackage does not handle Generics
 	 * - Must handle generic referenced types
 	 */
@@ -269,11 +452,96 @@ public class ClassToolboxTest {
 			"org/unbiquitous/driver/execution/executeAgent/JustAnArrayAtributeClass.class",
 			"org/unbiquitous/driver/execution/executeAgent/JustAnMultiArrayAtributeClass.class",
 			"org/unbiquitous/driver/execution/executeAgent/AMethodArrayParameter.class",
-			"org/unbiquitous/driver/execution/executeAgent/AMethodArrayReturnType.class"
+			"org/unbiquitous/driver/execution/executeAgent/AMethodArrayReturnType.class",
+			"org/unbiquitous/driver/execution/executeAgent/ACalledType.class"
 	//		"org/unbiquitous/driver/execution/JustAGenericReferencedAtributeClass.class"
 		);
 	}
 
+	@Test public void packagingDoesntInitializeTheClasses() throws Exception{
+		File jar = box.packageJarFor(MyJarAgent.class);
+		
+		assertThat(zipEntries(jar)).contains(
+			"org/unbiquitous/driver/execution/executeAgent/AnInitializedType.class");
+		assertEquals(false, InitializationSpy.initialized);
+	}
+	
+	@Test public void dependenciesAreTheClassesThatWouldBePackaged() throws Exception{
+		List<String> entries = new ArrayList<String>();
+		for (String entry : zipEntries(box.packageJarFor(MyJarAgent.class))){
+			entries.add(entry.replace(".class", "").replace('/', '.'));
+		}
+		
+		assertThat(box.dependenciesOf(MyJarAgent.class))
+			.contains(MyJarAgent.class.getName())
+			.containsOnly(entries.toArray());
+	}
+	
+	@Test public void classesAlreadyAnalyzedArentReadAgain() throws Exception{
+		CountingToolbox box = new CountingToolbox();
+		List<String> dependencies = box.dependenciesOf(MyJarAgent.class);
+		assertThat(box.reads.get()).isGreaterThan(0);
+		
+		box.reads.set(0);
+		assertThat(box.dependenciesOf(MyJarAgent.class)).isEqualTo(dependencies);
+		assertEquals(0, box.reads.get());
+		
+		box.packageBytesFor(MyJarAgent.class, null);
+		assertEquals(dependencies.size(), box.reads.get());
+	}
+	
+	@Test public void classesAreAnalyzedAgainWhenTheIndexChanges() throws Exception{
+		CountingToolbox box = new CountingToolbox();
+		List<String> dependencies = box.dependenciesOf(MyJarAgent.class);
+		
+		box.reads.set(0);
+		box.epoch = "changed";
+		assertThat(box.dependenciesOf(MyJarAgent.class)).isEqualTo(dependencies);
+		assertEquals(dependencies.size(), box.reads.get());
+	}
+	
+	@Test public void walkingInParallelPackagesTheSameJar() throws Exception{
+		byte[] serial = new JarPackager(box, null).packageJar(MyJarAgent.class, null);
+		List<String> dependencies = new JarPackager(box, null).dependenciesOf(MyJarAgent.class);
+		
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			for (int i = 0; i < 10; i++){
+				ClassToolbox box = new ClassToolbox();
+				assertEquals(true, Arrays.equals(serial, 
+						new JarPackager(box, pool).packageJar(MyJarAgent.class, null)));
+				assertThat(new JarPackager(box, pool).dependenciesOf(MyJarAgent.class))
+					.isEqualTo(dependencies);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	static class CountingToolbox extends ClassToolbox {
+		AtomicInteger reads = new AtomicInteger();
+		String epoch = "initial";
+		
+		protected InputStream findClass(String className, List<String> extraBlacklist)
+				throws java.io.IOException {
+			InputStream found = super.findClass(className, extraBlacklist);
+			if (found != null) reads.incrementAndGet();
+			return found;
+		}
+		
+		public String epoch() {
+			return epoch;
+		}
+	}
+	
+	@Test public void listOnlyTheKnownCandidates() throws Exception{
+		box.add2BlackList("luaj-jse");
+		assertThat(box.listKnownClasses(Arrays.asList(
+				MyAgent.class.getName(), Lua.class.getName(), 
+				Integer.class.getName(), "org.unbiquitous.NotAClass")))
+			.containsOnly(MyAgent.class.getName(), Lua.class.getName());
+	}
+	
 	@Test public void packageAlwaysTheSameJar() throws Exception{
 		ClassToolbox box1 = new ClassToolbox();
 		box1.add2BlackList("luaj-jse-2.0.2.jar");
@@ -294,6 +562,125 @@ public class ClassToolboxTest {
 		assertEquals(set2_1,set2_2);	
 	}
 	
+	@Test public void reusesPackagesBuiltWithTheSameBlacklists() throws Exception{
+		File jar = box.packageJarFor(MyJarAgent.class, 
+				Arrays.asList(AMethodParameter.class.getName(), AnException.class.getName()));
+		
+		assertEquals(jar, box.packageJarFor(MyJarAgent.class, 
+				Arrays.asList(AnException.class.getName(), AMethodParameter.class.getName())));
+		assertThat(box.packageJarFor(MyJarAgent.class, 
+				Arrays.asList(AnException.class.getName()))).isNotEqualTo(jar);
+		box.add2BlackList("luaj-jse");
+		assertThat(box.packageJarFor(MyJarAgent.class, 
+				Arrays.asList(AMethodParameter.class.getName(), AnException.class.getName())))
+			.isNotEqualTo(jar);
+	}
+	
+	@Test public void packagesAreBuiltInMemory() throws Exception{
+		byte[] pkg = box.packageBytesFor(MyJarAgent.class, null);
+		
+		Set<String> entries = new HashSet<String>();
+		ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(pkg));
+		ZipEntry entry;
+		while ((entry = zis.getNextEntry()) != null) entries.add(entry.getName());
+		assertEquals(zipEntries(box.packageJarFor(MyJarAgent.class)), entries);
+		assertStream(new ByteArrayInputStream(pkg), 
+						new FileInputStream(box.packageJarFor(MyJarAgent.class)));
+	}
+	
+	@Test public void keepsTheLoadersOfReceivedPackages() throws Exception{
+		byte[] jar = readAll(createJar(folder.newFile("received.jar"), "org/Alpha.class"));
+		ClassLoader loader = box.loadPackage(new ByteArrayInputStream(jar), box.hashOf(jar));
+		
+		assertEquals(loader, awaitLoader(box.hashOf(jar)));
+	}
+
+	@Test public void doesntKeepLoadersOfPackagesThatDontMatchTheirHash() throws Exception{
+		File jar = createJar(folder.newFile("received.jar"), "org/Alpha.class");
+
+		assertThat(box.loadPackage(new FileInputStream(jar), "notTheHash")).isNotNull();
+		assertEquals(null, awaitLoader("notTheHash"));
+	}
+	
+	/** Loaders are kept once the package is received, on another thread. */
+	private ClassLoader awaitLoader(String hash) throws InterruptedException {
+		for (int i = 0; i < 100 && box.loaderFor(hash) == null; i++){
+			Thread.sleep(10);
+		}
+		return box.loaderFor(hash);
+	}
+	
+	@Test public void definesClassesBeforeTheWholePackageArrives() throws Exception{
+		String parentSrc = 
+				"package org.unbiquitous.driver.execution;"
+			+	"public class Parent{"
+			+	"	public int two(){return 2;}"
+			+	"}";
+		String childSrc = 
+				"package org.unbiquitous.driver.execution;"
+			+	"public class Child extends Parent{"
+			+	"	public int three(){return two()+1;}"
+			+	"}";
+		File path = compileToPath(new String[]{parentSrc, childSrc}, 
+									new String[]{
+										"org.unbiquitous.driver.execution.Parent", 
+										"org.unbiquitous.driver.execution.Child"}, 
+									tempDir);
+		String pkg = "org/unbiquitous/driver/execution/";
+		
+		PipedInputStream received = new PipedInputStream();
+		ZipOutputStream sending = new ZipOutputStream(new PipedOutputStream(received));
+		ClassLoader loader = box.loadPackage(received, null);
+		sending.putNextEntry(new ZipEntry(pkg+"Parent.class"));
+		sending.write(readAll(new File(path, pkg+"Parent.class")));
+		sending.closeEntry();
+		sending.flush();
+		
+		Object parent = loader.loadClass("org.unbiquitous.driver.execution.Parent").newInstance();
+		assertEquals(2, parent.getClass().getMethod("two").invoke(parent));
+		
+		sending.putNextEntry(new ZipEntry(pkg+"Child.class"));
+		sending.write(readAll(new File(path, pkg+"Child.class")));
+		sending.close();
+		
+		Object child = loader.loadClass("org.unbiquitous.driver.execution.Child").newInstance();
+		assertEquals(3, child.getClass().getMethod("three").invoke(child));
+	}
+	
+	@Test(timeout=5000) 
+	public void abortsPackagesNotReceivedInTime() throws Exception{
+		String parentSrc = 
+				"package org.unbiquitous.driver.execution;"
+			+	"public class Parent{}";
+		File path = compileToPath(new String[]{parentSrc}, 
+				new String[]{"org.unbiquitous.driver.execution.Parent"}, tempDir);
+		String pkg = "org/unbiquitous/driver/execution/";
+		
+		PipedInputStream received = new PipedInputStream();
+		ZipOutputStream sending = new ZipOutputStream(new PipedOutputStream(received));
+		box.setReceptionTimeout(200);
+		ClassLoader loader = box.loadPackage(received, null);
+		sending.putNextEntry(new ZipEntry(pkg+"Parent.class"));
+		sending.write(readAll(new File(path, pkg+"Parent.class")));
+		sending.closeEntry();
+		sending.flush(); // and the sender stalls
+		
+		assertThat(loader.loadClass("org.unbiquitous.driver.execution.Parent")).isNotNull();
+		try {
+			loader.loadClass("org.unbiquitous.driver.execution.Child");
+			fail("Classes not received in time must not be found.");
+		} catch (ClassNotFoundException e) {}
+	}
+	
+	private byte[] readAll(File file) throws Exception {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return MemoryClassLoader.readAll(in);
+		} finally {
+			in.close();
+		}
+	}
+
 	@Test public void optimizeJarForDalvik() throws Exception{
 		box.add2BlackList("luaj-jse-3.0.jar");
 		File dalvik = box.packageDalvikFor(MyJarAgent.class);
@@ -316,12 +703,35 @@ public class ClassToolboxTest {
 		expected.add("org/unbiquitous/driver/execution/executeAgent/JustAnMultiArrayAtributeClass.class");
 		expected.add("org/unbiquitous/driver/execution/executeAgent/AMethodArrayParameter.class");
 		expected.add("org/unbiquitous/driver/execution/executeAgent/AMethodArrayReturnType.class");
+		expected.add("org/unbiquitous/driver/execution/executeAgent/ACalledType.class");
+		expected.add("org/unbiquitous/driver/execution/executeAgent/AnInitializedType.class");
+		expected.add("org/unbiquitous/driver/execution/executeAgent/InitializationSpy.class");
 		expected.add("classes.dex");
 		expected.add("META-INF/MANIFEST.MF");
 		
 		assertThat(zipEntries(dalvik)).containsOnly(expected.toArray(new String[]{}));
 	}
 	
+	@Test public void dalvikConversionFilesAreDeletedOnceCached() throws Exception{
+		final List<File> dirs = new ArrayList<File>();
+		ClassToolbox dalvikBox = new ClassToolbox(){
+			protected File convertToDalvik(File dir, File jar, String ANDROID_HOME)
+					throws IOException {
+				dirs.add(dir);
+				File dalvik = new File(dir, "dalvik.jar");
+				assertTrue(jar.renameTo(dalvik));
+				return dalvik;
+			}
+		};
+		File dalvik = dalvikBox.packageDalvikFor(DummyAgent.class);
+		
+		assertEquals(1, dirs.size());
+		assertFalse(dirs.get(0).exists());
+		assertTrue(dalvik.exists());
+		assertEquals(dalvik, dalvikBox.packageDalvikFor(DummyAgent.class));
+		assertEquals(1, dirs.size());
+	}
+	
 	@Test(expected=RuntimeException.class) 
 	public void conversionToDalvikFailsWhenNoAndroidHomeIsDefined() throws Exception{
 		box.convertToDalvik(tempDir, tempDir, null);
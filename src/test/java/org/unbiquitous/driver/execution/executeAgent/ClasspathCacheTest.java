@@ -0,0 +1,143 @@
+package org.unbiquitous.driver.execution.executeAgent;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.unbiquitous.driver.execution.executeAgent.CompilationUtil.createJar;
+import static org.unbiquitous.driver.execution.executeAgent.CompilationUtil.randomBytes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ClasspathCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private File tempDir;
+	
+	@Before public void setUp(){
+		tempDir = folder.getRoot();
+	}
+	
+	@Test public void reusesThePersistedClassIndexForUnchangedJars() throws Exception {
+		File jar = createJar(folder.newFile("indexed.jar"), "org/Alpha.class", "org/Beta.class");
+		File index = new File(tempDir, "classes.idx");
+		ClasspathCache cache = new ClasspathCache(index);
+		assertThat(cache.classesOf(jar)).containsOnly("org.Alpha", "org.Beta");
+		cache.save();
+		
+		long modified = jar.lastModified();
+		byte[] sameSize = randomBytes((int) jar.length());
+		FileOutputStream garbage = new FileOutputStream(jar);
+		garbage.write(sameSize);
+		garbage.close();
+		jar.setLastModified(modified);
+		
+		assertThat(new ClasspathCache(index).classesOf(jar))
+			.containsOnly("org.Alpha", "org.Beta");
+	}
+
+	@Test public void rescansJarsChangedSinceTheIndexWasPersisted() throws Exception {
+		File jar = createJar(folder.newFile("changing.jar"), "org/Alpha.class");
+		File index = new File(tempDir, "classes.idx");
+		ClasspathCache cache = new ClasspathCache(index);
+		assertThat(cache.classesOf(jar)).containsOnly("org.Alpha");
+		cache.save();
+		
+		createJar(jar, "org/Alpha.class", "org/Gamma.class");
+		jar.setLastModified(jar.lastModified() + 2000);
+		
+		assertThat(new ClasspathCache(index).classesOf(jar))
+			.containsOnly("org.Alpha", "org.Gamma");
+	}
+
+	@Test public void rescansDirectoriesWithNewClasses() throws Exception {
+		File root = folder.newFolder("classes");
+		File pkg = new File(root, "org");
+		pkg.mkdirs();
+		new File(pkg, "Alpha.class").createNewFile();
+		File index = new File(tempDir, "classes.idx");
+		ClasspathCache cache = new ClasspathCache(index);
+		assertThat(cache.classesOf(root)).containsOnly("org.Alpha");
+		cache.save();
+		
+		new File(pkg, "Beta.class").createNewFile();
+		pkg.setLastModified(pkg.lastModified() + 2000);
+		
+		assertThat(new ClasspathCache(index).classesOf(root))
+			.containsOnly("org.Alpha", "org.Beta");
+	}
+
+	@Test public void isOnlyKeptInMemoryByDefault() throws Exception {
+		String location = System.getProperty(ClasspathCache.FILE_PROPERTY);
+		System.clearProperty(ClasspathCache.FILE_PROPERTY);
+		try {
+			assertEquals(null, ClasspathCache.fromSystem().file());
+			File index = new File(tempDir, "classes.idx");
+			System.setProperty(ClasspathCache.FILE_PROPERTY, index.getPath());
+			assertEquals(index, ClasspathCache.fromSystem().file());
+		} finally {
+			if (location == null) System.clearProperty(ClasspathCache.FILE_PROPERTY);
+			else System.setProperty(ClasspathCache.FILE_PROPERTY, location);
+		}
+	}
+
+	@Test public void ignoresACorruptIndex() throws Exception {
+		File jar = createJar(folder.newFile("indexed.jar"), "org/Alpha.class");
+		File index = new File(tempDir, "classes.idx");
+		FileOutputStream garbage = new FileOutputStream(index);
+		garbage.write(randomBytes(100));
+		garbage.close();
+		
+		assertThat(new ClasspathCache(index).classesOf(jar)).containsOnly("org.Alpha");
+	}
+
+	@Test public void entriesScannedAfterReleaseArentKept() throws Exception {
+		File jar = createJar(folder.newFile("late.jar"), "org/Alpha.class");
+		ClasspathCache cache = new ClasspathCache(null);
+		cache.release();
+		assertThat(cache.classesOf(jar)).containsOnly("org.Alpha");
+		
+		long modified = jar.lastModified();
+		FileOutputStream garbage = new FileOutputStream(jar);
+		garbage.write(randomBytes((int) jar.length()));
+		garbage.close();
+		jar.setLastModified(modified);
+		try {
+			cache.classesOf(jar);
+			fail("An entry kept would hide the garbage");
+		} catch (IOException e) {}
+	}
+
+	@Test public void indexesDirectoriesInParallelAsASerialWalkWould() throws Exception {
+		File root = folder.newFolder("tree");
+		for (int p = 0; p < 20; p++){
+			File pkg = new File(root, "org/p"+p+"/inner");
+			pkg.mkdirs();
+			for (int c = 0; c < 10; c++){
+				new File(pkg.getParentFile(), "C"+c+".class").createNewFile();
+				new File(pkg, "I"+c+".class").createNewFile();
+			}
+		}
+		List<String> serial = new ClasspathCache(null).classesOf(root);
+		
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			for (int i = 0; i < 10; i++){
+				assertThat(new ClasspathCache(null).scan(root, pool).classes())
+					.hasSize(400).isEqualTo(serial);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
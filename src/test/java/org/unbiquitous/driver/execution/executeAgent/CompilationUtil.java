@@ -3,15 +3,21 @@ package org.unbiquitous.driver.execution.executeAgent;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.Random;
 import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.abstractmeta.toolbox.compilation.compiler.JavaSourceCompiler;
 import org.abstractmeta.toolbox.compilation.compiler.impl.JavaSourceCompilerImpl;
@@ -75,4 +81,49 @@ public class CompilationUtil {
 			count++;
 		}
 	}
+	
+	public static byte[] randomBytes(int size) {
+		byte[] content = new byte[size];
+		new Random(42).nextBytes(content);
+		return content;
+	}
+	
+	public static File createJar(File jar, String ... entries) throws IOException {
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar));
+		for (String entry : entries){
+			zos.putNextEntry(new ZipEntry(entry));
+			zos.write(randomBytes(64));
+		}
+		zos.close();
+		return jar;
+	}
+	
+	/** @return A jar, in memory, with every file under the directory. */
+	public static byte[] zipDirectory(File directory) throws IOException {
+		ByteArrayOutputStream jar = new ByteArrayOutputStream();
+		ZipOutputStream zos = new ZipOutputStream(jar);
+		zipDirectory(directory, directory, zos);
+		zos.close();
+		return jar.toByteArray();
+	}
+	
+	private static void zipDirectory(File directory, File base, ZipOutputStream zos) 
+			throws IOException {
+		File[] files = directory.listFiles();
+		Arrays.sort(files);
+		for (File file : files){
+			if (file.isDirectory()){
+				zipDirectory(file, base, zos);
+			}else{
+				zos.putNextEntry(new ZipEntry(
+						file.getPath().substring(base.getPath().length() + 1)));
+				InputStream in = new FileInputStream(file);
+				try {
+					zos.write(MemoryClassLoader.readAll(in));
+				} finally {
+					in.close();
+				}
+			}
+		}
+	}
 }
@@ -10,13 +10,13 @@ import static org.mockito.Mockito.mock;
 import static org.unbiquitous.driver.execution.executeAgent.CompilationUtil.compileToClass;
 import static org.unbiquitous.driver.execution.executeAgent.CompilationUtil.compileToFile;
 import static org.unbiquitous.driver.execution.executeAgent.CompilationUtil.compileToPath;
+import static org.unbiquitous.driver.execution.executeAgent.CompilationUtil.zipDirectory;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutputStream;
@@ -24,13 +24,14 @@ import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.io.Serializable;
 import java.util.Map;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.unbiquitous.driver.execution.ExecutionDriver;
+import org.unbiquitous.uos.core.InitialProperties;
 import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;
 import org.unbiquitous.uos.core.applicationManager.CallContext;
 import org.unbiquitous.uos.core.messageEngine.messages.Call;
@@ -49,6 +50,7 @@ public class ExecuteAgentServiceTest {
 	
 	@Before public void setUp(){
 		driver = new ExecutionDriver();
+		driver.init(null, null, null);
 		response = new Response();
 		tempDir = folder.getRoot();
 	}
@@ -174,14 +176,10 @@ public class ExecuteAgentServiceTest {
 		
 		
 		File path = compileToPath(new String[]{source},new String[]{clazz},tempDir);
-		File jar = File.createTempFile("temp", ".jar");
-		JarPackager packager = new JarPackager(new ClassToolbox());
-		final ZipOutputStream zos = new ZipOutputStream( new FileOutputStream( jar ) );
-		packager.zip(path, path, zos);
-		zos.close();
+		byte[] jar = zipDirectory(path);
 		Class<?> c= compileToClass(source,clazz);
 		
-		executeFromJar((Serializable) c.newInstance(),new FileInputStream(jar));
+		executeFromJar((Serializable) c.newInstance(),new ByteArrayInputStream(jar));
 		
 		assertNull("No error should be found.",response.getError());
 		
@@ -193,6 +191,67 @@ public class ExecuteAgentServiceTest {
 				});
 	}
 	
+	@Test public void reusesThePackagesAlreadyReceived() throws Exception{
+		final Integer before = MyAgent.AgentSpy.count;
+		
+		String source = 
+				"package org.unbiquitous.driver.execution.executeAgent;"
+			+	"import org.unbiquitous.driver.execution.executeAgent.MyAgent.AgentSpy;"
+			+	"import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;"
+			+	"public class Foo4 extends org.unbiquitous.driver.execution.executeAgent.Agent {"
+			+	"	int increment = 7;"
+			+	"	public void run(Gateway gateway){"
+			+	"		AgentSpy.count+=increment;"
+			+	"	}"
+			+	"}";
+		final String clazz = "org.unbiquitous.driver.execution.executeAgent.Foo4";
+		
+		File path = compileToPath(new String[]{source},new String[]{clazz},tempDir);
+		byte[] jar = zipDirectory(path);
+		final String hash = PackageCache.hashOf(jar);
+		Serializable agent = (Serializable) compileToClass(source,clazz).newInstance();
+		
+		executeFromJar(agent, new ByteArrayInputStream(jar), hash);
+		assertNull("No error should be found.",response.getError());
+		assertEventually("Must run the agent from the package",1000, 
+				new EventuallyAssert(){
+					public boolean assertion(){
+						return (Integer)(before+7) == MyAgent.AgentSpy.count;
+					}
+				});
+		assertEventually("Must keep the loader of the package",1000, 
+				new EventuallyAssert(){
+					public boolean assertion(){
+						return driver.toolbox().loaderFor(hash) != null;
+					}
+				});
+		
+		Call call = new Call();
+		call.addParameter("jar", "true");
+		call.addParameter("package", hash);
+		Response cached = new Response();
+		ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		new ObjectOutputStream(serialized).writeObject(agent);
+		final DataInputStream agentStream = new DataInputStream(
+								new ByteArrayInputStream(serialized.toByteArray()));
+		driver.executeAgent(call, cached, new CallContext(){
+			public DataInputStream getDataInputStream() {	return agentStream;	}
+			public DataInputStream getDataInputStream(int index) {
+				if (index == 0) return agentStream;
+				throw new AssertionError("The package must not be received again.");
+			}
+		});
+		
+		assertNull("No error should be found.",cached.getError());
+		assertEquals("true", cached.getResponseData("cached"));
+		assertEventually("Must run the agent with the known package",1000, 
+				new EventuallyAssert(){
+					public boolean assertion(){
+						return (Integer)(before+14) == MyAgent.AgentSpy.count;
+					}
+				});
+	}
+	
 	@Test public void rejectsACorruptedAgentObject() throws Exception{
 		final Integer before = MyAgent.AgentSpy.count;
 		MyAgent a = new MyAgent();
@@ -299,7 +358,118 @@ public class ExecuteAgentServiceTest {
 													.isInstanceOf(Map.class);
 	}
 	
-	//TODO: SHouldn't wait 4 ever for a agent to be received
+	@Test public void rejectsAgentsWhenTooManyAreWaiting() throws Exception{
+		InitialProperties props = new InitialProperties();
+		props.put(ExecutionDriver.AGENT_THREADS_KEY, "1");
+		props.put(ExecutionDriver.AGENT_QUEUE_KEY, "1");
+		driver.init(mock(Gateway.class), props, null);
+		
+		final CountDownLatch hold = new CountDownLatch(1);
+		Response running = new Response();
+		Response waiting = new Response();
+		Response rejected = new Response();
+		driver.executeAgent(new Call(), running, holdingContext(hold));
+		driver.executeAgent(new Call(), waiting, holdingContext(hold));
+		driver.executeAgent(new Call(), rejected, holdingContext(hold));
+		
+		assertNull(running.getError());
+		assertNull(waiting.getError());
+		assertNotNull("An error is expected.",rejected.getError());
+		assertEventually("One agent must be running and other waiting", 
+				1000, new EventuallyAssert(){
+				public boolean assertion(){
+					return driver.activeAgents() == 1 && driver.queuedAgents() == 1;
+				}
+			});
+		
+		hold.countDown();
+		assertEventually("All agents must finish", 1000, new EventuallyAssert(){
+				public boolean assertion(){
+					return driver.activeAgents() == 0 && driver.queuedAgents() == 0;
+				}
+			});
+	}
+	
+	@Test public void refusesAgentsSentForAnOutdatedEpoch() throws Exception{
+		final CountDownLatch hold = new CountDownLatch(1);
+		Call outdated = new Call();
+		outdated.addParameter("epoch", "outdated");
+		driver.executeAgent(outdated, response, holdingContext(hold));
+		assertEquals(AgentUtil.OUTDATED_CLASSES_ERROR, response.getError());
+		
+		Call current = new Call();
+		current.addParameter("epoch", driver.toolbox().epoch());
+		Response accepted = new Response();
+		driver.executeAgent(current, accepted, holdingContext(hold));
+		assertNull(accepted.getError());
+		hold.countDown();
+	}
+	
+	@Test public void givesUpOnAgentsThatNeverArrive() throws Exception{
+		InitialProperties props = new InitialProperties();
+		props.put(ExecutionDriver.AGENT_TIMEOUT_KEY, "200");
+		driver.init(mock(Gateway.class), props, null);
+		
+		final DataInputStream silent = new DataInputStream(new PipedInputStream(
+													new PipedOutputStream()));
+		driver.executeAgent(new Call(), response, new CallContext(){
+			public DataInputStream getDataInputStream() {	return silent;	}
+			public DataInputStream getDataInputStream(int index) {	return silent;	}
+		});
+		
+		assertNull("No error should be found.",response.getError());
+		assertEventually("The agent must be waited for", 150, new EventuallyAssert(){
+				public boolean assertion(){
+					return driver.activeAgents() == 1;
+				}
+			});
+		assertEventually("The reception must be aborted", 2000, new EventuallyAssert(){
+				public boolean assertion(){
+					return driver.activeAgents() == 0;
+				}
+			});
+	}
+	
+	@Test public void waitsForeverForAgentsWithoutATimeout() throws Exception{
+		InitialProperties props = new InitialProperties();
+		props.put(ExecutionDriver.AGENT_TIMEOUT_KEY, "0");
+		driver.init(mock(Gateway.class), props, null);
+		
+		final CountDownLatch hold = new CountDownLatch(1);
+		driver.executeAgent(new Call(), response, holdingContext(hold));
+		
+		assertNull("No error should be found.",response.getError());
+		Thread.sleep(300);
+		assertEquals("The reception must not be aborted", 1, driver.activeAgents());
+		hold.countDown();
+		assertEventually("The agent must be received", 2000, new EventuallyAssert(){
+				public boolean assertion(){
+					return driver.activeAgents() == 0;
+				}
+			});
+	}
+	
+	/** An agent stream that only ends (empty) after the latch is released. */
+	private CallContext holdingContext(final CountDownLatch hold) {
+		final DataInputStream stream = new DataInputStream(new InputStream() {
+			public int read() throws IOException {
+				await();
+				return -1;
+			}
+			private void await() throws IOException {
+				try {
+					hold.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e.getMessage());
+				}
+			}
+		});
+		return new CallContext(){
+			public DataInputStream getDataInputStream() {	return stream;	}
+			public DataInputStream getDataInputStream(int index) {	return stream;	}
+		};
+	}
+	
 	//TODO: check if there is a way to do it with OSGi
 	//TODO? Must the agent have a lifecycle?
 	//TODO? Do we need to control the execution of the Agent.
@@ -329,6 +499,10 @@ public class ExecuteAgentServiceTest {
 	private void executeFromJar(Serializable a, final InputStream jar) throws Exception{
 		execute(a, null, jar, null, false, false);
 	}
+
+	private void executeFromJar(Serializable a, final InputStream jar, String pkgHash) throws Exception{
+		execute(a, null, jar, null, false, false, pkgHash);
+	}
 	
 	private void dontexecute(Serializable a) throws Exception{
 		execute(a, null,null, null, true, false);
@@ -340,6 +514,12 @@ public class ExecuteAgentServiceTest {
 	
 	private void execute(Serializable a, final InputStream code, final InputStream jar,
 			String clazz, boolean mustFailAgent, final boolean mustFailCode) throws Exception{
+		execute(a, code, jar, clazz, mustFailAgent, mustFailCode, null);
+	}
+	
+	private void execute(Serializable a, final InputStream code, final InputStream jar,
+			String clazz, boolean mustFailAgent, final boolean mustFailCode,
+			String pkgHash) throws Exception{
 		
 		final PipedInputStream pipeForAgent = new PipedInputStream();
 		final DataInputStream agentStream = new DataInputStream(pipeForAgent);
@@ -363,6 +543,7 @@ public class ExecuteAgentServiceTest {
 			bytecode = code;
 		}else if (jar != null){
 			call.addParameter("jar", "true");
+			if (pkgHash != null) call.addParameter("package", pkgHash);
 			bytecode = jar;
 		}else{
 			bytecode = null;
@@ -0,0 +1,37 @@
+package org.unbiquitous.driver.execution.executeAgent;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LoaderCacheTest {
+	
+	@Test public void keepsTheLoadersOfTheMostRecentlyReceivedPackages() throws Exception{
+		LoaderCache cache = new LoaderCache(2);
+		ClassLoader first = new ClassLoader() {};
+		ClassLoader second = new ClassLoader() {};
+		ClassLoader third = new ClassLoader() {};
+		cache.put("first", first);
+		cache.put("second", second);
+		assertEquals(first, cache.get("first"));
+		cache.put("third", third);
+
+		assertEquals(first, cache.get("first"));
+		assertEquals(null, cache.get("second"));
+		assertEquals(third, cache.get("third"));
+		assertEquals(2, cache.loaders());
+	}
+	
+	@Test public void anEmptyCacheKeepsNothing() throws Exception{
+		LoaderCache cache = new LoaderCache(0);
+		cache.put("first", new ClassLoader() {});
+		
+		assertEquals(null, cache.get("first"));
+		assertEquals(0, cache.loaders());
+	}
+	
+	@Test(expected=IllegalArgumentException.class) 
+	public void rejectsNegativeSizes() throws Exception{
+		new LoaderCache(-1);
+	}
+}
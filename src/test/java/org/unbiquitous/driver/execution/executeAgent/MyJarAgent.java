@@ -46,6 +46,8 @@ public class MyJarAgent
 	public static AStaticReturnType doNothingStatic(){ return null;}
 	public void innerParameter(){ AInnerMethodUsedType type = null;}
 	public void thrower() throws AnException{}
+	public void caller(){ ACalledType.call(); }
+	public void initializer(AnInitializedType initialized){}
 }
 
 @SuppressWarnings("unused")
@@ -73,6 +75,17 @@ class AMethodArrayReturnType{}
 class AConstantType{}
 class AStaticReturnType{}
 class AInnerMethodUsedType{}
+class ACalledType{
+	static void call(){}
+}
+class AnInitializedType{
+	static {
+		InitializationSpy.initialized = true;
+	}
+}
+class InitializationSpy{
+	static boolean initialized = false;
+}
 class AnException extends Exception{
 	private static final long serialVersionUID = 1L;
 }
\ No newline at end of file
@@ -0,0 +1,85 @@
+package org.unbiquitous.driver.execution.executeAgent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class OpenJarsTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void keepsJarsOpenBetweenLookups() throws Exception{
+		OpenJars jars = new OpenJars(2);
+		File a = jar("a.jar");
+		OpenJars.Jar first = jars.acquire(a);
+		jars.release(first);
+		OpenJars.Jar second = jars.acquire(a);
+		jars.release(second);
+		
+		assertSame(first, second);
+		assertNotNull(second.zip.getEntry("entry"));
+	}
+	
+	@Test
+	public void closesTheLeastRecentlyUsedJars() throws Exception{
+		OpenJars jars = new OpenJars(2);
+		OpenJars.Jar a = jars.acquire(jar("a.jar"));
+		jars.release(a);
+		jars.release(jars.acquire(jar("b.jar")));
+		jars.release(jars.acquire(jar("c.jar")));
+		
+		assertEquals(2, jars.opened());
+		assertClosed(a.zip);
+	}
+	
+	@Test
+	public void evictedJarsAreClosedOnlyAfterBeingRead() throws Exception{
+		OpenJars jars = new OpenJars(1);
+		OpenJars.Jar a = jars.acquire(jar("a.jar"));
+		jars.release(jars.acquire(jar("b.jar")));
+		
+		assertNotNull(a.zip.getEntry("entry"));
+		jars.release(a);
+		assertClosed(a.zip);
+	}
+	
+	@Test
+	public void closingClosesEveryJar() throws Exception{
+		OpenJars jars = new OpenJars(2);
+		OpenJars.Jar a = jars.acquire(jar("a.jar"));
+		jars.release(a);
+		jars.close();
+		
+		assertEquals(0, jars.opened());
+		assertClosed(a.zip);
+	}
+	
+	private void assertClosed(ZipFile zip) {
+		try {
+			zip.getEntry("entry");
+			fail("Jar must be closed");
+		} catch (IllegalStateException e) {}
+	}
+	
+	private File jar(String name) throws Exception {
+		File jar = new File(folder.getRoot(), name);
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar));
+		zos.putNextEntry(new ZipEntry("entry"));
+		zos.write(1);
+		zos.close();
+		return jar;
+	}
+}
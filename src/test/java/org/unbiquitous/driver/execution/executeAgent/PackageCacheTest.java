@@ -0,0 +1,42 @@
+package org.unbiquitous.driver.execution.executeAgent;
+
+import static org.junit.Assert.assertEquals;
+import static org.unbiquitous.driver.execution.executeAgent.CompilationUtil.randomBytes;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class PackageCacheTest {
+	
+	@Test public void packagesWithTheSameContentAreStoredOnce() throws Exception{
+		PackageCache cache = new PackageCache();
+		byte[] first = randomBytes(100);
+		byte[] second = Arrays.copyOf(first, first.length);
+		
+		assertEquals(first, cache.put("first", first));
+		assertEquals(first, cache.put("second", second));
+		assertEquals(first, cache.get("second"));
+		assertEquals(1, cache.size());
+		assertEquals(cache.fileFor("first"), cache.fileFor("second"));
+	}
+
+	@Test public void evictsTheLeastRecentlyUsedPackages() throws Exception{
+		PackageCache cache = new PackageCache(250);
+		byte[] first = new byte[100];
+		byte[] second = new byte[101];
+		byte[] third = new byte[102];
+		cache.put("first", first);
+		cache.put("second", second);
+		File secondFile = cache.fileFor("second");
+		cache.get("first");
+		cache.put("third", third);
+		
+		assertEquals(null, cache.get("second"));
+		assertEquals(false, secondFile.exists());
+		assertEquals(first, cache.get("first"));
+		assertEquals(third, cache.get("third"));
+		assertEquals(202, cache.bytes());
+	}
+}
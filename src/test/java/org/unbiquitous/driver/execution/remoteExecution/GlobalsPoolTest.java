@@ -0,0 +1,142 @@
+package org.unbiquitous.driver.execution.remoteExecution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.luaj.vm2.Globals;
+import org.unbiquitous.driver.execution.remoteExecution.GlobalsPool.ResetPolicy;
+
+
+public class GlobalsPoolTest {
+
+	@Test
+	public void startsWithAllInstancesWarm(){
+		GlobalsPool pool = new GlobalsPool(3, ResetPolicy.RESTORE);
+		assertEquals(3, pool.idle());
+	}
+
+	@Test
+	public void reusesReleasedInstances(){
+		GlobalsPool pool = new GlobalsPool(1, ResetPolicy.RESTORE);
+		Globals _G = pool.borrow();
+		pool.release(_G);
+		assertSame(_G, pool.borrow());
+	}
+
+	@Test
+	public void createsNewInstancesWhenEmptyButKeepsOnlyItsSize(){
+		GlobalsPool pool = new GlobalsPool(1, ResetPolicy.RESTORE);
+		Globals first = pool.borrow();
+		Globals second = pool.borrow();
+		assertNotSame(first, second);
+		pool.release(first);
+		pool.release(second);
+		assertEquals(1, pool.idle());
+	}
+
+	@Test
+	public void restoresGlobalsChangedByAScript(){
+		GlobalsPool pool = new GlobalsPool(1, ResetPolicy.RESTORE);
+		Globals _G = pool.borrow();
+		_G.load("leftover = 1\n print = nil\n").call();
+		pool.release(_G);
+
+		_G = pool.borrow();
+		assertTrue(_G.get("leftover").isnil());
+		assertTrue(_G.get("print").isfunction());
+	}
+
+	@Test
+	public void restoresLibraryTablesChangedByAScript(){
+		GlobalsPool pool = new GlobalsPool(1, ResetPolicy.RESTORE);
+		Globals _G = pool.borrow();
+		_G.load("string.upper = nil\n math.leftover = 1\n").call();
+		pool.release(_G);
+
+		_G = pool.borrow();
+		assertTrue(_G.get("string").get("upper").isfunction());
+		assertTrue(_G.get("math").get("leftover").isnil());
+	}
+
+	@Test
+	public void forgetsRequiredModules(){
+		GlobalsPool pool = new GlobalsPool(1, ResetPolicy.RESTORE);
+		Globals _G = pool.borrow();
+		_G.load("require '"+UosLuaCall.class.getName()+"'").call();
+		pool.release(_G);
+
+		_G = pool.borrow();
+		assertTrue(_G.get("Uos").isnil());
+		assertTrue(_G.get("package").get("loaded")
+						.get(UosLuaCall.class.getName()).isnil());
+	}
+
+	@Test
+	public void restoresTheMetatableOfTheGlobalTable(){
+		GlobalsPool pool = new GlobalsPool(1, ResetPolicy.RESTORE);
+		Globals _G = pool.borrow();
+		_G.load("setmetatable(_G, {__index=function() return 'poisoned' end})").call();
+		pool.release(_G);
+
+		_G = pool.borrow();
+		assertNull(_G.getmetatable());
+		assertTrue(_G.get("undefined").isnil());
+	}
+
+	@Test
+	public void restoresTablesNestedDeeper(){
+		GlobalsPool pool = new GlobalsPool(1, ResetPolicy.RESTORE);
+		Globals _G = pool.borrow();
+		int searchers = _G.get("package").get("searchers").length();
+		_G.load("package.preload.poisoned = function() return 1 end\n"
+				+ "table.insert(package.searchers, 1, function() return nil end)\n"
+				+ "setmetatable(string, {__index=function() return 2 end})").call();
+		pool.release(_G);
+
+		_G = pool.borrow();
+		assertTrue(_G.get("package").get("preload").get("poisoned").isnil());
+		assertEquals(searchers, _G.get("package").get("searchers").length());
+		assertTrue(_G.get("string").get("undefined").isnil());
+	}
+
+	@Test
+	public void discardReplacesUsedInstances() throws Exception{
+		GlobalsPool pool = new GlobalsPool(1, ResetPolicy.DISCARD);
+		Globals _G = pool.borrow();
+		pool.release(_G);
+		// the replacement is built in background
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pool.idle() == 0 && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+		assertEquals(1, pool.idle());
+		assertNotSame(_G, pool.borrow());
+	}
+
+	@Test
+	public void extraInstancesAreNeverPooled(){
+		GlobalsPool pool = new GlobalsPool(1, ResetPolicy.RESTORE);
+		Globals pooled = pool.borrow();
+		Globals extra = pool.borrow();
+		pool.release(extra);
+		assertEquals(0, pool.idle());
+		pool.release(pooled);
+		assertSame(pooled, pool.borrow());
+	}
+
+	@Test
+	public void ignoresForeignInstances(){
+		GlobalsPool pool = new GlobalsPool(1, ResetPolicy.RESTORE);
+		pool.release(new Globals());
+		assertEquals(1, pool.idle());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsEmptyPools(){
+		new GlobalsPool(0, ResetPolicy.RESTORE);
+	}
+}
@@ -1,6 +1,16 @@
 package org.unbiquitous.driver.execution.remoteExecution;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -15,6 +25,7 @@ private ExecutionDriver driver;
 	
 	@Before public void setUp(){
 		driver = new ExecutionDriver();
+		driver.init(null, null, null);
 	}
 	
 	@Test public void AllowsRemoteExecution(){
@@ -70,4 +81,113 @@ private ExecutionDriver driver;
 		assertEquals("6",response.getResponseData("value"));
 	}
 	
+	@Test public void GlobalsDoNotLeakBetweenExecutions(){
+		Call call1 = new Call();
+		call1.addParameter("code", "leftover = 'oops'\n");
+		driver.remoteExecution(call1, new Response(), null);
+		
+		Call call2 = new Call();
+		call2.addParameter("code", "set('value',tostring(leftover))\n");
+		Response response2 = new Response();
+		driver.remoteExecution(call2, response2, null);
+		assertEquals("nil",response2.getResponseData("value"));
+	}
+	
+	@Test public void RepeatedScriptsAreCompiledOnlyOnce(){
+		String script = "set('value',get('value')+1)\n";
+		for (int i = 0; i < 3; i++){
+			Call call = new Call();
+			call.addParameter("code", script);
+			call.addParameter("value", ""+i);
+			Response response = new Response();
+			driver.remoteExecution(call, response, null);
+			assertEquals(""+(i+1),response.getResponseData("value"));
+		}
+		assertEquals(1, driver.scripts().misses());
+		assertEquals(2, driver.scripts().hits());
+	}
+	
+	@Test public void AllowsTheOldStyleCalls(){
+		Call call = new Call();
+		StringBuffer script = new StringBuffer();
+		script.append("a = Uos.get(UOS_ID,'a') \n");
+		script.append("b = Uos.get(UOS_ID,'b') \n");
+		script.append("Uos.set(UOS_ID,'value',a+b) \n");
+		call.addParameter("code", script.toString());
+		call.addParameter("a", "2");
+		call.addParameter("b", "3");
+		Response response = new Response();
+		driver.remoteExecution(call, response, null);
+		assertEquals("5",response.getResponseData("value"));
+	}
+	
+	@Test public void ReportsScriptErrors(){
+		Call call = new Call();
+		call.addParameter("code", "set('value', nothing.here)\n");
+		Response response = new Response();
+		driver.remoteExecution(call, response, null);
+		assertNotNull(response.getError());
+	}
+	
+	@Test public void NoValuesAreKeptAfterManyConcurrentExecutions() throws Exception{
+		final int calls = 5000;
+		final String script = "set('value',get('value')+1)\n";
+		final AtomicInteger failures = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(16);
+		for (int i = 0; i < calls; i++){
+			final int value = i;
+			pool.execute(new Runnable() {
+				public void run() {
+					Call call = new Call();
+					call.addParameter("code", script);
+					call.addParameter("value", ""+value);
+					Response response = new Response();
+					driver.remoteExecution(call, response, null);
+					if (!(""+(value+1)).equals(response.getResponseData("value"))){
+						failures.incrementAndGet();
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(2, TimeUnit.MINUTES));
+		assertEquals(0, failures.get());
+		assertEquals(0, UosLuaCall.values().size());
+	}
+	
+	@Test public void ConcurrentExecutionsNeverCrossValues() throws Exception{
+		final int calls = 4000;
+		StringBuffer script = new StringBuffer();
+		script.append("local mine = get('tag')\n");
+		script.append("for i=1,50 do\n");
+		script.append("	Uos.set(UOS_ID,'tag',Uos.get(UOS_ID,'tag'))\n");
+		script.append("end\n");
+		script.append("set('value',mine..':'..Uos.get(UOS_ID,'tag'))\n");
+		final String code = script.toString();
+		final CountDownLatch start = new CountDownLatch(1);
+		final Queue<String> crossed = new ConcurrentLinkedQueue<String>();
+		ExecutorService pool = Executors.newFixedThreadPool(32);
+		for (int i = 0; i < calls; i++){
+			final String tag = "call"+i;
+			pool.execute(new Runnable() {
+				public void run() {
+					try { start.await(); } catch (InterruptedException e) {}
+					Call call = new Call();
+					call.addParameter("code", code);
+					call.addParameter("tag", tag);
+					Response response = new Response();
+					driver.remoteExecution(call, response, null);
+					Object value = response.getResponseData("value");
+					if (!(tag+":"+tag).equals(value)){
+						crossed.add(tag+" got "+value);
+					}
+				}
+			});
+		}
+		start.countDown();
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(2, TimeUnit.MINUTES));
+		assertTrue("Crossed outputs: "+crossed, crossed.isEmpty());
+	}
+	
 }
\ No newline at end of file
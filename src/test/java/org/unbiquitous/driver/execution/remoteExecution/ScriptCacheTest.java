@@ -0,0 +1,83 @@
+package org.unbiquitous.driver.execution.remoteExecution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+
+public class ScriptCacheTest {
+	private Globals _G;
+	
+	@Before
+	public void setUp(){
+		_G = JsePlatform.standardGlobals();
+	}
+	
+	@Test
+	public void compilesOnlyOnceTheSameScript() throws Exception{
+		ScriptCache cache = new ScriptCache(2);
+		Prototype first = cache.compile(_G, "a = 1", "script");
+		Prototype second = cache.compile(_G, "a = 1", "script");
+		
+		assertSame(first, second);
+		assertEquals(1, cache.misses());
+		assertEquals(1, cache.hits());
+	}
+	
+	@Test
+	public void differentScriptsAreDifferentEntries() throws Exception{
+		ScriptCache cache = new ScriptCache(2);
+		Prototype first = cache.compile(_G, "a = 1", "script");
+		Prototype second = cache.compile(_G, "a = 2", "script");
+		
+		assertNotSame(first, second);
+		assertEquals(2, cache.misses());
+		assertEquals(2, cache.cached());
+	}
+	
+	@Test
+	public void evictsTheLeastRecentlyUsed() throws Exception{
+		ScriptCache cache = new ScriptCache(2);
+		Prototype a = cache.compile(_G, "a = 1", "script");
+		cache.compile(_G, "b = 1", "script");
+		cache.compile(_G, "a = 1", "script"); // a is now the most recent
+		cache.compile(_G, "c = 1", "script"); // so b goes away
+		
+		assertEquals(1, cache.evictions());
+		assertEquals(2, cache.cached());
+		assertSame(a, cache.compile(_G, "a = 1", "script"));
+		long misses = cache.misses();
+		cache.compile(_G, "b = 1", "script");
+		assertEquals(misses+1, cache.misses());
+	}
+	
+	@Test
+	public void aCachedScriptCanRunOnDifferentGlobals() throws Exception{
+		ScriptCache cache = new ScriptCache(2);
+		Globals other = JsePlatform.standardGlobals();
+		
+		new LuaClosure(cache.compile(_G, "a = 1", "script"), _G).call();
+		new LuaClosure(cache.compile(other, "a = 1", "script"), other).call();
+		
+		assertEquals(1, _G.get("a").toint());
+		assertEquals(1, other.get("a").toint());
+	}
+	
+	@Test
+	public void hashesByContent(){
+		assertEquals(ScriptCache.hash("a = 1"), ScriptCache.hash(new String("a = 1")));
+		assertEquals(64, ScriptCache.hash("a = 1").length());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsEmptyCaches(){
+		new ScriptCache(0);
+	}
+}
@@ -6,14 +6,20 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
 import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.lib.jse.JsePlatform;
+import org.unbiquitous.driver.execution.remoteExecution.CallValues.Scope;
 
 
 public class UosLuaCallTest {
@@ -33,6 +39,7 @@ public class UosLuaCallTest {
 	
 	@Test
 	public void setsValue() throws Exception{
+		values.open(1);
 		StringBuffer script = createBaseScript(1);
 		script.append("Uos.set(UOS_ID,'a',5)\n");
 		
@@ -43,6 +50,7 @@ public class UosLuaCallTest {
 	
 	@Test
 	public void setsDifferentValuesForDifferentKeys() throws Exception{
+		values.open(1);
 		StringBuffer script = createBaseScript(1);
 		script.append("Uos.set(UOS_ID,'a',5)\n");
 		script.append("Uos.set(UOS_ID,'b',7)\n");
@@ -55,6 +63,8 @@ public class UosLuaCallTest {
 
 	@Test
 	public void setsDifferentValuesForDifferentUOS_IDs() throws Exception{
+		values.open(1);
+		values.open(2);
 		StringBuffer script = createBaseScript(1);
 		script.append("Uos.set(UOS_ID,'a',5)\n");
 		
@@ -70,6 +80,7 @@ public class UosLuaCallTest {
 	
 	@Test
 	public void getsValue() throws Exception{
+		values.open(1);
 		values.setValue(1,"b","7");
 		StringBuffer script = createBaseScript(1);
 		script.append("Uos.set(UOS_ID,'a',Uos.get(UOS_ID,'b'))\n");
@@ -81,6 +92,8 @@ public class UosLuaCallTest {
 	
 	@Test
 	public void getsValueFromDifferentUosIDs() throws Exception{
+		values.open(1);
+		values.open(2);
 		values.setValue(1,"b","7");
 		StringBuffer script = createBaseScript(1);
 		script.append("Uos.set(UOS_ID,'a',Uos.get(UOS_ID,'b'))\n");
@@ -99,6 +112,7 @@ public class UosLuaCallTest {
 	
 	@Test
 	public void getsEmptyFromAnUnknownKey() throws Exception{
+		values.open(1);
 		StringBuffer script = createBaseScript(1);
 		script.append("Uos.set(UOS_ID,'a',Uos.get(UOS_ID,'b'))\n");
 		
@@ -117,6 +131,8 @@ public class UosLuaCallTest {
 	
 	@Test
 	public void returnsDataKeys(){
+		values.open(0);
+		values.open(1);
 		values.setValue(0, "a", "1");
 		values.setValue(0, "b", "2");
 		values.setValue(1, "c", "3");
@@ -131,12 +147,155 @@ public class UosLuaCallTest {
 	
 	@Test
 	public void clearsData(){
+		values.open(0);
 		values.setValue(0, "a", "1");
 		assertNotNull(values.getValue(0, "a"));
 		values.clearValues();
 		assertNull(values.getValue(0, "a"));
 	}
 	
+	@Test
+	public void environmentBindsSetToTheInformedId() throws Exception{
+		Scope scope = values.open(3);
+		run("set('a', 5)\n", UosLuaCall.environment(scope, global));
+		
+		assertEquals("5",scope.getValue("a"));
+	}
+	
+	@Test
+	public void environmentBindsGetToTheInformedId() throws Exception{
+		Scope scope = values.open(3);
+		scope.setValue("b","7");
+		values.open(4).setValue("b","8");
+		run("set('a', get('b'))\n", UosLuaCall.environment(scope, global));
+		
+		assertEquals("7",scope.getValue("a"));
+	}
+	
+	@Test
+	public void environmentKeepsTheOldStyleCalls() throws Exception{
+		Scope scope = values.open(3);
+		scope.setValue("b","7");
+		run("Uos.set(UOS_ID,'a',Uos.get(UOS_ID,'b'))\n", 
+				UosLuaCall.environment(scope, global));
+		
+		assertEquals("7",values.getValue(3,"a"));
+	}
+	
+	@Test
+	public void environmentKeepsUOS_IDANumber() throws Exception{
+		Scope scope = values.open(3);
+		run("set('type', type(UOS_ID))\n set('next', UOS_ID+1)\n", 
+				UosLuaCall.environment(scope, global));
+		
+		assertEquals("number",scope.getValue("type"));
+		assertEquals("4",scope.getValue("next"));
+	}
+	
+	@Test(expected=LuaError.class)
+	public void environmentRefusesTheIdsOfOtherCalls() throws Exception{
+		values.open(2).setValue("b","8");
+		Scope scope = values.open(3);
+		run("set('a', Uos.get(UOS_ID-1,'b'))\n", UosLuaCall.environment(scope, global));
+	}
+	
+	@Test
+	public void requiredLibraryCantReachTheScopesOfEnvironments() throws Exception{
+		Scope scope = values.open(3);
+		scope.setValue("b","7");
+		UosLuaCall.environment(scope, global);
+		StringBuffer script = createBaseScript(4);
+		script.append("leaked = Uos.get(3,'b')\n");
+		
+		global.load( new StringReader(script.toString()), "myscript").call();
+		
+		assertTrue(global.get("leaked").isnil());
+	}
+	
+	@Test
+	public void settingValuesDoesntOpenScopes(){
+		assertEquals(false, values.setValue(7, "a", "1"));
+		assertNull(values.getValue(7, "a"));
+		assertEquals(0, values.size());
+	}
+	
+	@Test(expected=LuaError.class)
+	public void requiredLibraryDoesntSetUnknownIds() throws Exception{
+		StringBuffer script = createBaseScript(9);
+		script.append("Uos.set(UOS_ID,'a',5)\n");
+		
+		global.load( new StringReader(script.toString()), "myscript").call();
+	}
+	
+	@Test
+	public void environmentGivesAccessToTheGlobals() throws Exception{
+		Scope scope = values.open(3);
+		run("set('a', string.upper('x'))\n", UosLuaCall.environment(scope, global));
+		
+		assertEquals("X",scope.getValue("a"));
+	}
+	
+	@Test
+	public void environmentKeepsScriptGlobalsToItself() throws Exception{
+		LuaTable env = UosLuaCall.environment(values.open(3), global);
+		run("leftover = 1\n function f() end\n", env);
+		
+		assertTrue(global.get("leftover").isnil());
+		assertTrue(global.get("f").isnil());
+		assertEquals(1, env.get("leftover").toint());
+	}
+	
+	@Test
+	public void releasingAScopeDropsItsValues(){
+		Scope scope = values.open(5);
+		scope.setValue("a", "1");
+		assertEquals("1", values.getValue(5, "a"));
+		values.release(scope);
+		assertNull(values.getValue(5, "a"));
+		assertEquals(0, values.size());
+	}
+	
+	@Test
+	public void releasingAnOldScopeKeepsTheNewOneWithTheSameId(){
+		Scope old = values.open(5);
+		Scope current = values.open(5);
+		current.setValue("a", "1");
+		values.release(old);
+		assertEquals("1", values.getValue(5, "a"));
+	}
+	
+	@Test
+	public void generatedScopeIdsAreNeverRepeated() throws Exception{
+		final Set<Long> ids = Collections.synchronizedSet(new HashSet<Long>());
+		final int perThread = 1000;
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++){
+			threads[t] = new Thread(){
+				public void run() {
+					for (int i = 0; i < perThread; i++){
+						ids.add(values.open().id());
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads) t.join();
+		assertEquals(threads.length*perThread, ids.size());
+	}
+	
+	@Test
+	public void settingNullRemovesTheKey(){
+		Scope scope = values.open(5);
+		scope.setValue("a", "1");
+		scope.setValue("a", null);
+		assertNull(scope.getValue("a"));
+		assertTrue(scope.getKeys().isEmpty());
+	}
+	
+	private void run(String script, LuaTable env) throws Exception {
+		new LuaClosure(global.compilePrototype(new StringReader(script), "myscript"), env).call();
+	}
+	
 	private StringBuffer createBaseScript(int id) {
 		StringBuffer script = new StringBuffer();
 		script.append("UOS_ID="+id+"\n");